@@ -0,0 +1,98 @@
+package com.bitwiseops.rsteg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes 24-bit uncompressed BMP images strip by strip. The image is stored
+ * top-down (with a negative height), so that rows can be written in the order
+ * in which they are produced.
+ */
+public class BmpStripWriter implements StripImageWriter {
+    private static final int FILE_HEADER_SIZE = 14;
+    private static final int INFO_HEADER_SIZE = 40;
+    private static final int BITS_PER_PIXEL = 24;
+    private static final int PIXELS_PER_METER = 2835;// 72 DPI
+    
+    private final OutputStream outputStream;
+    private final int width, height;
+    private final byte[] rowBytes;
+    private int[] stripPixels;
+    private int rowsWritten;
+    
+    public BmpStripWriter(OutputStream outputStream, int width, int height) throws IOException {
+        this.outputStream = outputStream;
+        this.width = width;
+        this.height = height;
+        int stride = (width * 3 + 3) & ~3;
+        this.rowBytes = new byte[stride];
+        
+        long imageSize = (long)stride * height;
+        if(FILE_HEADER_SIZE + INFO_HEADER_SIZE + imageSize > 0xffffffffL) {
+            throw new IllegalArgumentException("Image is too large for the BMP format.");
+        }
+        byte[] header = new byte[FILE_HEADER_SIZE + INFO_HEADER_SIZE];
+        header[0] = 'B';
+        header[1] = 'M';
+        putInt(header, 2, (int)(FILE_HEADER_SIZE + INFO_HEADER_SIZE + imageSize));
+        putInt(header, 10, FILE_HEADER_SIZE + INFO_HEADER_SIZE);
+        putInt(header, 14, INFO_HEADER_SIZE);
+        putInt(header, 18, width);
+        putInt(header, 22, -height);
+        putShort(header, 26, 1);// planes
+        putShort(header, 28, BITS_PER_PIXEL);
+        putInt(header, 30, 0);// BI_RGB
+        putInt(header, 34, (int)imageSize);
+        putInt(header, 38, PIXELS_PER_METER);
+        putInt(header, 42, PIXELS_PER_METER);
+        outputStream.write(header);
+    }
+    
+    @Override
+    public void writeStrip(BufferedImage strip) throws IOException {
+        int stripHeight = strip.getHeight();
+        if(strip.getWidth() != width || rowsWritten + stripHeight > height) {
+            throw new IllegalArgumentException("Strip does not fit in the image.");
+        }
+        if(stripPixels == null || stripPixels.length < width * stripHeight) {
+            stripPixels = new int[width * stripHeight];
+        }
+        strip.getRaster().getDataElements(0, 0, width, stripHeight, stripPixels);
+        
+        for(int y = 0; y < stripHeight; y++) {
+            int i = 0;
+            for(int x = 0; x < width; x++) {
+                int pixel = stripPixels[y * width + x];
+                rowBytes[i++] = (byte)pixel;
+                rowBytes[i++] = (byte)(pixel >>> 8);
+                rowBytes[i++] = (byte)(pixel >>> 16);
+            }
+            outputStream.write(rowBytes);
+        }
+        rowsWritten += stripHeight;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            if(rowsWritten != height) {
+                throw new IOException("Not all rows of the image were written.");
+            }
+        } finally {
+            outputStream.close();
+        }
+    }
+    
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)value;
+        buffer[offset + 1] = (byte)(value >>> 8);
+        buffer[offset + 2] = (byte)(value >>> 16);
+        buffer[offset + 3] = (byte)(value >>> 24);
+    }
+    
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)value;
+        buffer[offset + 1] = (byte)(value >>> 8);
+    }
+}
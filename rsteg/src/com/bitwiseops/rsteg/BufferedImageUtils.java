@@ -1,15 +1,29 @@
 package com.bitwiseops.rsteg;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.WritableRaster;
+import java.util.List;
 
 public final class BufferedImageUtils {
     private BufferedImageUtils() {}
     
     public static void putBitplane(BufferedImage bufferedImage, int band, int bitIndex, Bitfield2D bitfield) {
+        if(bufferedImage.getHeight() != bitfield.getHeight()) {
+            throw new IllegalArgumentException("Mismatched image and bitfield dimensions.");
+        }
+        putBitplane(bufferedImage, band, bitIndex, bitfield, 0);
+    }
+    
+    /**
+     * Stores the rows of <code>bitfield</code> starting at <code>yOffset
+     * </code> into a bitplane of <code>bufferedImage</code>. The image must be
+     * as wide as the bitfield, but may be a horizontal strip of it.
+     */
+    public static void putBitplane(BufferedImage bufferedImage, int band, int bitIndex, Bitfield2D bitfield, int yOffset) {
         int width = bufferedImage.getWidth();
         int height = bufferedImage.getHeight();
-        if(width != bitfield.getWidth() || height != bitfield.getHeight()) {
+        if(width != bitfield.getWidth() || yOffset < 0 || yOffset + height > bitfield.getHeight()) {
             throw new IllegalArgumentException("Mismatched image and bitfield dimensions.");
         }
         
@@ -24,7 +38,7 @@ public final class BufferedImageUtils {
             int mask = 1 << shiftAmount;
             for(int y = 0; y < height; y++) {
                 for(int x = 0; x < width; x += Bitfield2D.BITS_PER_ELEMENT) {
-                    int element = bitfield.data[bitfield.posToIndex(x, y)];
+                    int element = bitfield.data[bitfield.posToIndex(x, y + yOffset)];
                     int baseIndex = y * width + x;
                     for(int xi = 0; xi < Bitfield2D.BITS_PER_ELEMENT && x + xi < width; xi++) {
                         sampleArray[baseIndex + xi] = (sampleArray[baseIndex + xi] & ~mask)
@@ -39,10 +53,82 @@ public final class BufferedImageUtils {
         }
     }
     
+    /**
+     * Stores only the areas <code>regions</code> of <code>bitfield</code>,
+     * such as those returned by <code>RStegCodec.update</code>, into a
+     * bitplane of <code>bufferedImage</code>. The image must be as large as
+     * the bitfield.
+     */
+    public static void putBitplane(BufferedImage bufferedImage, int band, int bitIndex, Bitfield2D bitfield, List<Rectangle> regions) {
+        if(bufferedImage.getHeight() != bitfield.getHeight()) {
+            throw new IllegalArgumentException("Mismatched image and bitfield dimensions.");
+        }
+        putBitplane(bufferedImage, band, bitIndex, bitfield, 0, regions);
+    }
+    
+    /**
+     * Stores the parts of the areas <code>regions</code> of <code>bitfield
+     * </code> that lie in the rows starting at <code>yOffset</code> into a
+     * bitplane of <code>bufferedImage</code>, leaving the other pixels
+     * untouched. The image must be as wide as the bitfield, but may be a
+     * horizontal strip of it.
+     */
+    public static void putBitplane(BufferedImage bufferedImage, int band, int bitIndex, Bitfield2D bitfield, int yOffset, List<Rectangle> regions) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        if(width != bitfield.getWidth() || yOffset < 0 || yOffset + height > bitfield.getHeight()) {
+            throw new IllegalArgumentException("Mismatched image and bitfield dimensions.");
+        }
+        
+        WritableRaster raster = bufferedImage.getRaster();
+        Rectangle strip = new Rectangle(0, yOffset, width, height);
+        
+        switch(bufferedImage.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+            int[] sampleArray = new int[0];
+            int shiftAmount = 24 - 8 * band + bitIndex;
+            int mask = 1 << shiftAmount;
+            for(Rectangle region : regions) {
+                Rectangle area = region.intersection(strip);
+                if(area.isEmpty()) {
+                    continue;
+                }
+                int sampleArraySize = raster.getNumDataElements() * area.width * area.height;
+                if(sampleArray.length < sampleArraySize) {
+                    sampleArray = new int[sampleArraySize];
+                }
+                raster.getDataElements(area.x, area.y - yOffset, area.width, area.height, sampleArray);
+                for(int y = 0; y < area.height; y++) {
+                    int baseIndex = y * area.width;
+                    for(int x = 0; x < area.width; x++) {
+                        sampleArray[baseIndex + x] = (sampleArray[baseIndex + x] & ~mask)
+                                | (bitfield.getBit(area.x + x, area.y + y) << shiftAmount);
+                    }
+                }
+                raster.setDataElements(area.x, area.y - yOffset, area.width, area.height, sampleArray);
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("Image type not supported.");
+        }
+    }
+    
     public static void getBitplane(BufferedImage bufferedImage, int band, int bitIndex, Bitfield2D bitfield) {
+        if(bufferedImage.getHeight() != bitfield.getHeight()) {
+            throw new IllegalArgumentException("Mismatched image and bitfield dimensions.");
+        }
+        getBitplane(bufferedImage, band, bitIndex, bitfield, 0);
+    }
+    
+    /**
+     * Extracts a bitplane from <code>bufferedImage</code> into the rows of
+     * <code>bitfield</code> starting at <code>yOffset</code>. The image must be
+     * as wide as the bitfield, but may be a horizontal strip of it.
+     */
+    public static void getBitplane(BufferedImage bufferedImage, int band, int bitIndex, Bitfield2D bitfield, int yOffset) {
         int width = bufferedImage.getWidth();
         int height = bufferedImage.getHeight();
-        if(width != bitfield.getWidth() || height != bitfield.getHeight()) {
+        if(width != bitfield.getWidth() || yOffset < 0 || yOffset + height > bitfield.getHeight()) {
             throw new IllegalArgumentException("Mismatched image and bitfield dimensions.");
         }
         
@@ -61,7 +147,7 @@ public final class BufferedImageUtils {
                     for(int xi = 0; xi < Bitfield2D.BITS_PER_ELEMENT && x + xi < width; xi++) {
                         element |= ((sampleArray[baseIndex + xi] >>> shiftAmount) & 1) << xi;
                     }
-                    bitfield.data[bitfield.posToIndex(x, y)] = element;
+                    bitfield.data[bitfield.posToIndex(x, y + yOffset)] = element;
                 }
             }
             break;
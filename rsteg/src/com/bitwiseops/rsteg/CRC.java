@@ -67,6 +67,63 @@ public class CRC {
         return update((byte)(d >>> 24));
     }
     
+    /**
+     * Returns the CRC of the concatenation of two byte sequences, given the
+     * CRC <code>crc1</code> of the first sequence, the CRC <code>crc2</code> of
+     * the second sequence and the length <code>length2</code> of the second
+     * sequence. This does not affect the current value.
+     */
+    public int combine(int crc1, int crc2, long length2) {
+        /*
+         * Since the register starts at zero, the CRC of the concatenation is
+         * crc1 advanced through length2 zero bytes, plus crc2. Advancing is a
+         * linear operator over GF(2), which is raised to the required power by
+         * repeated squaring.
+         */
+        int[] odd = new int[32];
+        int[] even = new int[32];
+        odd[0] = revPoly;// operator for a single zero bit
+        for(int n = 1; n < 32; n++) {
+            odd[n] = 1 << (n - 1);
+        }
+        squareMatrix(even, odd);// two zero bits
+        squareMatrix(odd, even);// four zero bits
+        
+        do {
+            squareMatrix(even, odd);
+            if((length2 & 1) != 0) {
+                crc1 = multiplyMatrix(even, crc1);
+            }
+            length2 >>>= 1;
+            if(length2 == 0) {
+                break;
+            }
+            squareMatrix(odd, even);
+            if((length2 & 1) != 0) {
+                crc1 = multiplyMatrix(odd, crc1);
+            }
+            length2 >>>= 1;
+        } while(length2 != 0);
+        
+        return crc1 ^ crc2;
+    }
+    
+    private static int multiplyMatrix(int[] matrix, int vector) {
+        int result = 0;
+        for(int i = 0; vector != 0; i++, vector >>>= 1) {
+            if((vector & 1) != 0) {
+                result ^= matrix[i];
+            }
+        }
+        return result;
+    }
+    
+    private static void squareMatrix(int[] square, int[] matrix) {
+        for(int n = 0; n < 32; n++) {
+            square[n] = multiplyMatrix(matrix, matrix[n]);
+        }
+    }
+    
     /**
      * Updates the CRC with the given bytes and returns the new value.
      */
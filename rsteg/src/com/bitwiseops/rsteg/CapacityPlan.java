@@ -0,0 +1,142 @@
+package com.bitwiseops.rsteg;
+
+import com.bitwiseops.rsteg.RStegCodec.ErrorCorrectionLevel;
+
+/**
+ * The outcome of <code>RStegCodec.plan</code>: how much a carrier of a given
+ * size holds, and what encoding and decoding a payload of a given size in it
+ * costs, worked out from the layout alone, without encoding anything.
+ * <p>
+ * The payload is the message as stored, so for a compressing codec it is the
+ * compressed length. The memory estimates cover the bitplane and the
+ * structures of the codec, not the image the bitplane is read from, and the
+ * operation counts are upper bounds on the multiplications in the
+ * Reed-Solomon field, the bulk of the work.
+ */
+public class CapacityPlan {
+    private final int version;
+    private final ErrorCorrectionLevel ecLevel;
+    private final int codewordLength;
+    private final int patchCapacity;
+    private final int maxPayloadLength;
+    private final int payloadLength;
+    private final int codewordCount;
+    private final int neededPatchCount;
+    private final long encodeMemory;
+    private final long streamEncodeMemory;
+    private final long decodeMemory;
+    private final long encodeOperations;
+    private final long decodeOperations;
+    
+    CapacityPlan(int version, ErrorCorrectionLevel ecLevel, int codewordLength, int patchCapacity, int maxPayloadLength,
+            int payloadLength, int codewordCount, int neededPatchCount, long encodeMemory, long streamEncodeMemory,
+            long decodeMemory, long encodeOperations, long decodeOperations) {
+        this.version = version;
+        this.ecLevel = ecLevel;
+        this.codewordLength = codewordLength;
+        this.patchCapacity = patchCapacity;
+        this.maxPayloadLength = maxPayloadLength;
+        this.payloadLength = payloadLength;
+        this.codewordCount = codewordCount;
+        this.neededPatchCount = neededPatchCount;
+        this.encodeMemory = encodeMemory;
+        this.streamEncodeMemory = streamEncodeMemory;
+        this.decodeMemory = decodeMemory;
+        this.encodeOperations = encodeOperations;
+        this.decodeOperations = decodeOperations;
+    }
+    
+    /**
+     * Returns true if the payload fits in the carrier.
+     */
+    public boolean fits() {
+        return payloadLength <= maxPayloadLength;
+    }
+    
+    /**
+     * Returns the format version the payload would be encoded with, which
+     * depends on how many patches it needs rather than on the size of the
+     * carrier.
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    public ErrorCorrectionLevel getErrorCorrectionLevel() {
+        return ecLevel;
+    }
+    
+    public int getCodewordLength() {
+        return codewordLength;
+    }
+    
+    /**
+     * Returns the number of patches the carrier can hold, which is limited by
+     * the patch indices of the format that holds the longest payload as well
+     * as by its size.
+     */
+    public int getPatchCapacity() {
+        return patchCapacity;
+    }
+    
+    /**
+     * Returns the length in bytes of the longest payload that fits, or -1 if
+     * not even an empty one does.
+     */
+    public int getMaxPayloadLength() {
+        return maxPayloadLength;
+    }
+    
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+    
+    /**
+     * Returns the number of codewords the payload is encoded into, including
+     * the length word and the checksum.
+     */
+    public int getCodewordCount() {
+        return codewordCount;
+    }
+    
+    public int getNeededPatchCount() {
+        return neededPatchCount;
+    }
+    
+    /**
+     * Returns about how many bytes <code>encode(byte[], int, int)</code>
+     * needs for the payload.
+     */
+    public long getEncodeMemory() {
+        return encodeMemory;
+    }
+    
+    /**
+     * Returns about how many bytes <code>encode(InputStream)</code> needs,
+     * which does not depend on the payload length.
+     */
+    public long getStreamEncodeMemory() {
+        return streamEncodeMemory;
+    }
+    
+    /**
+     * Returns about how many bytes <code>decode()</code> needs for the
+     * payload.
+     */
+    public long getDecodeMemory() {
+        return decodeMemory;
+    }
+    
+    public long getEncodeOperations() {
+        return encodeOperations;
+    }
+    
+    /**
+     * Returns the operations needed to decode the payload if every codeword
+     * has as many errors as can be corrected. An intact carrier needs about
+     * half as many.
+     */
+    public long getDecodeOperations() {
+        return decodeOperations;
+    }
+}
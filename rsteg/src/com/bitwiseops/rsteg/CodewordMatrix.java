@@ -0,0 +1,151 @@
+package com.bitwiseops.rsteg;
+
+import java.util.Arrays;
+
+/**
+ * Collects the symbols of received codewords in a dense matrix, with one row
+ * of <code>codewordLength</code> symbols per codeword. Symbols are stored as
+ * <code>short</code>s, and a bitmap records which of them have been
+ * received; all others are erasures. The number of received symbols of each
+ * codeword is tracked as well.
+ * <p>
+ * If two patches supply different symbols for the same position, neither can
+ * be trusted, so the position becomes an erasure and stays one. The number of
+ * such conflicts is tracked per codeword.
+ * <p>
+ * The matrix grows if a codeword index beyond its capacity is put, but is
+ * normally sized up front from the number of patches that can be present.
+ */
+class CodewordMatrix {
+    private final int codewordLength;
+    private final int presentWordsPerCodeword;
+    private short[] symbols;
+    private long[] present;
+    private long[] conflicted;
+    private int[] symbolCounts;
+    private int[] conflictCounts;
+    private int codewordCount;
+    
+    public CodewordMatrix(int codewordLength, int codewordCapacity) {
+        this.codewordLength = codewordLength;
+        this.presentWordsPerCodeword = MathUtils.ceilDivide(codewordLength, Long.SIZE);
+        codewordCapacity = Math.max(1, codewordCapacity);
+        this.symbols = new short[codewordCapacity * codewordLength];
+        this.present = new long[codewordCapacity * presentWordsPerCodeword];
+        this.conflicted = new long[codewordCapacity * presentWordsPerCodeword];
+        this.symbolCounts = new int[codewordCapacity];
+        this.conflictCounts = new int[codewordCapacity];
+    }
+    
+    /**
+     * Stores <code>symbol</code> at position <code>symbolIndex</code> of
+     * codeword <code>codewordIndex</code>. If a different symbol was received
+     * there before, the position is marked as a conflict and erased.
+     */
+    public void put(int codewordIndex, int symbolIndex, int symbol) {
+        if(codewordIndex >= symbolCounts.length) {
+            grow(codewordIndex + 1);
+        }
+        codewordCount = Math.max(codewordCount, codewordIndex + 1);
+        int presentIndex = codewordIndex * presentWordsPerCodeword + (symbolIndex >>> 6);
+        long presentBit = 1L << symbolIndex;
+        if((conflicted[presentIndex] & presentBit) != 0) {
+            return;
+        }
+        int symbolOffset = codewordIndex * codewordLength + symbolIndex;
+        if((present[presentIndex] & presentBit) == 0) {
+            present[presentIndex] |= presentBit;
+            symbolCounts[codewordIndex]++;
+            symbols[symbolOffset] = (short)symbol;
+        } else if(symbols[symbolOffset] != symbol) {
+            present[presentIndex] &= ~presentBit;
+            conflicted[presentIndex] |= presentBit;
+            symbolCounts[codewordIndex]--;
+            conflictCounts[codewordIndex]++;
+        }
+    }
+    
+    /**
+     * Returns true if at least one symbol of codeword <code>codewordIndex
+     * </code> has been received.
+     */
+    public boolean contains(int codewordIndex) {
+        return codewordIndex < codewordCount && (symbolCounts[codewordIndex] > 0 || conflictCounts[codewordIndex] > 0);
+    }
+    
+    /**
+     * Returns the number of received symbols of codeword <code>codewordIndex
+     * </code>.
+     */
+    public int getSymbolCount(int codewordIndex) {
+        return (codewordIndex < codewordCount) ? symbolCounts[codewordIndex] : 0;
+    }
+    
+    /**
+     * Returns the number of erased symbols of codeword <code>codewordIndex
+     * </code>, including conflicts.
+     */
+    public int getErasureCount(int codewordIndex) {
+        return codewordLength - getSymbolCount(codewordIndex);
+    }
+    
+    /**
+     * Returns the number of positions of codeword <code>codewordIndex</code>
+     * that were erased because different symbols were received for them.
+     */
+    public int getConflictCount(int codewordIndex) {
+        return (codewordIndex < codewordCount) ? conflictCounts[codewordIndex] : 0;
+    }
+    
+    /**
+     * Returns one more than the highest index of a codeword with a received
+     * symbol.
+     */
+    public int getCodewordCount() {
+        return codewordCount;
+    }
+    
+    public int getCodewordLength() {
+        return codewordLength;
+    }
+    
+    /**
+     * Returns a copy of codeword <code>codewordIndex</code>, with <code>
+     * RStegCodec.ERASED_SYMBOL</code> at the positions that have not been
+     * received.
+     */
+    public int[] getCodeword(int codewordIndex) {
+        return getCodeword(codewordIndex, codewordLength);
+    }
+    
+    /**
+     * Returns a copy of the first <code>length</code> symbols of codeword
+     * <code>codewordIndex</code>, which is all of a shortened codeword.
+     */
+    public int[] getCodeword(int codewordIndex, int length) {
+        int[] codeword = new int[length];
+        if(codewordIndex >= codewordCount) {
+            Arrays.fill(codeword, RStegCodec.ERASED_SYMBOL);
+            return codeword;
+        }
+        int symbolOffset = codewordIndex * codewordLength;
+        int presentOffset = codewordIndex * presentWordsPerCodeword;
+        for(int i = 0; i < length; i++) {
+            if((present[presentOffset + (i >>> 6)] & (1L << i)) != 0) {
+                codeword[i] = symbols[symbolOffset + i];
+            } else {
+                codeword[i] = RStegCodec.ERASED_SYMBOL;
+            }
+        }
+        return codeword;
+    }
+    
+    private void grow(int minCodewordCapacity) {
+        int codewordCapacity = Math.max(minCodewordCapacity, symbolCounts.length * 2);
+        symbols = Arrays.copyOf(symbols, codewordCapacity * codewordLength);
+        present = Arrays.copyOf(present, codewordCapacity * presentWordsPerCodeword);
+        conflicted = Arrays.copyOf(conflicted, codewordCapacity * presentWordsPerCodeword);
+        symbolCounts = Arrays.copyOf(symbolCounts, codewordCapacity);
+        conflictCounts = Arrays.copyOf(conflictCounts, codewordCapacity);
+    }
+}
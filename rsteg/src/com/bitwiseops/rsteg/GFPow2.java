@@ -11,7 +11,7 @@ public class GFPow2 implements Field {
     private final int degree;
     private final int tableModulus;
     private final int[] logs;
-    private final int[] antilogs;
+    private final int[] antilogs;// two periods, so that sums of logs need no reduction
     
     public GFPow2(int poly, int genPoly) {
         this.poly = poly;
@@ -21,7 +21,7 @@ public class GFPow2 implements Field {
         tableModulus = size - 1;
         
         logs = new int[size];
-        antilogs = new int[size];
+        antilogs = new int[2 * tableModulus];
         int x = 1;
         for(int i = 1; i < size; i++) {
             x = slowMul(x, genPoly);
@@ -30,6 +30,7 @@ public class GFPow2 implements Field {
         }
         logs[1] = 0;
         antilogs[0] = 1;
+        System.arraycopy(antilogs, 0, antilogs, tableModulus, tableModulus);
     }
     
     public GFPow2(int poly) {
@@ -51,7 +52,7 @@ public class GFPow2 implements Field {
         if(x == 0 || y == 0) {
             return 0;
         } else {
-            return antilogs[(logs[x] + logs[y]) % tableModulus];
+            return antilogs[logs[x] + logs[y]];
         }
     }
     
@@ -62,7 +63,7 @@ public class GFPow2 implements Field {
         } else if(y == 0) {
             throw new ArithmeticException("Division by zero.");
         } else {
-            return antilogs[(logs[x] - logs[y] + tableModulus) % tableModulus];
+            return antilogs[logs[x] - logs[y] + tableModulus];
         }
     }
     
@@ -0,0 +1,225 @@
+package com.bitwiseops.rsteg;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads an image as a sequence of horizontal strips, so that only one strip of
+ * decoded pixels needs to be held in memory at a time.
+ * <p>
+ * How that is done depends on the format. The PNG images that <code>
+ * PngBitplaneReader</code> supports are inflated row by row. BMP images, and
+ * images such as TIFF files that are stored in several strips or tiles, are
+ * read a region at a time, as the reader can skip to the rows of a region;
+ * both take a single pass over the file when the strips are read in order.
+ * Other images, such as JPEG files and PNG files that <code>
+ * PngBitplaneReader</code> does not support, are decoded from the top
+ * whenever a region is read, which would make reading every strip take time
+ * quadratic in the height, so they are decoded once, on the first read, and
+ * the strips are cut from that: those take memory for the whole image.
+ */
+public class ImageStripReader implements Closeable {
+    public static final int DEFAULT_STRIP_HEIGHT = 256;
+    
+    private final File file;
+    private final ImageInputStream imageInputStream;// null for direct PNG reads
+    private final ImageReader imageReader;
+    private final int width, height;
+    private final int stripHeight;
+    private final boolean readsRegions;// true if the reader can skip to a region cheaply
+    private InputStream pngInputStream;
+    private PngBitplaneReader pngReader;// null unless reading PNG rows directly
+    private int nextStripIndex;
+    private int[] stripPixels;
+    private BufferedImage sourceImage;// the whole image, for formats that can't skip rows
+    private BufferedImage stripImage;
+    
+    public ImageStripReader(File file) throws IOException {
+        this(file, DEFAULT_STRIP_HEIGHT);
+    }
+    
+    public ImageStripReader(File file, int stripHeight) throws IOException {
+        if(stripHeight <= 0) {
+            throw new IllegalArgumentException("stripHeight must be positive.");
+        }
+        this.file = file;
+        this.stripHeight = stripHeight;
+        if(openPng()) {
+            imageInputStream = null;
+            imageReader = null;
+            width = pngReader.getWidth();
+            height = pngReader.getHeight();
+            readsRegions = false;
+            return;
+        }
+        imageInputStream = ImageIO.createImageInputStream(file);
+        if(imageInputStream == null) {
+            throw new IOException("Can't read input file!");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+        if(!readers.hasNext()) {
+            imageInputStream.close();
+            throw new IOException("Unsupported image format.");
+        }
+        imageReader = readers.next();
+        imageReader.setInput(imageInputStream, false, true);
+        width = imageReader.getWidth(0);
+        height = imageReader.getHeight(0);
+        readsRegions = imageReader.getFormatName().equalsIgnoreCase("bmp") || imageReader.getTileHeight(0) < height;
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns true if the pixels of the image have an alpha component.
+     */
+    public boolean hasAlpha() throws IOException {
+        if(pngReader != null) {
+            return pngReader.hasAlpha();
+        }
+        ImageTypeSpecifier imageType = imageReader.getRawImageType(0);
+        if(imageType == null) {
+            imageType = imageReader.getImageTypes(0).next();
+        }
+        return imageType.getColorModel().hasAlpha();
+    }
+    
+    public int getStripHeight() {
+        return stripHeight;
+    }
+    
+    /**
+     * Returns the number of strips needed to cover the whole image.
+     */
+    public int getStripCount() {
+        return MathUtils.ceilDivide(height, stripHeight);
+    }
+    
+    /**
+     * Reads strip number <code>stripIndex</code> and returns it converted to
+     * <code>TYPE_INT_ARGB</code>. The returned image is reused by subsequent
+     * calls, and is shorter than the strip height for the last strip if the
+     * image height is not a multiple of it. Strips are best read in order; a
+     * PNG image read directly is inflated again from the top if an earlier
+     * strip is asked for.
+     */
+    public BufferedImage readStrip(int stripIndex) throws IOException {
+        int y = stripIndex * stripHeight;
+        int rows = Math.min(stripHeight, height - y);
+        if(stripIndex < 0 || rows <= 0) {
+            throw new IndexOutOfBoundsException("Strip index out of range.");
+        }
+        
+        if(stripImage == null || stripImage.getHeight() != rows) {
+            stripImage = new BufferedImage(width, rows, BufferedImage.TYPE_INT_ARGB);
+        }
+        
+        if(pngReader != null) {
+            if(stripIndex < nextStripIndex) {
+                closePng();
+                openPng();
+                nextStripIndex = 0;
+            }
+            if(stripPixels == null) {
+                stripPixels = new int[width * stripHeight];
+            }
+            for(; nextStripIndex < stripIndex; nextStripIndex++) {
+                pngReader.readPixels(stripPixels, stripHeight);
+            }
+            pngReader.readPixels(stripPixels, rows);
+            nextStripIndex++;
+            stripImage.getRaster().setDataElements(0, 0, width, rows, stripPixels);
+            return stripImage;
+        }
+        
+        BufferedImage sourceStrip;
+        if(readsRegions) {
+            ImageReadParam readParam = imageReader.getDefaultReadParam();
+            readParam.setSourceRegion(new Rectangle(0, y, width, rows));
+            sourceStrip = imageReader.read(0, readParam);
+        } else {
+            if(sourceImage == null) {
+                sourceImage = imageReader.read(0);
+            }
+            sourceStrip = sourceImage.getSubimage(0, y, width, rows);
+        }
+        
+        Graphics2D stripGraphics = stripImage.createGraphics();
+        stripGraphics.setComposite(AlphaComposite.Src);
+        stripGraphics.drawImage(sourceStrip, 0, 0, null);
+        stripGraphics.dispose();
+        return stripImage;
+    }
+    
+    /**
+     * Extracts bit <code>bitIndex</code> of band <code>band</code> from every
+     * pixel of the image, one strip at a time.
+     */
+    public Bitfield2D readBitplane(int band, int bitIndex) throws IOException {
+        Bitfield2D bitfield = new Bitfield2D(width, height);
+        for(int stripIndex = 0; stripIndex < getStripCount(); stripIndex++) {
+            BufferedImage strip = readStrip(stripIndex);
+            BufferedImageUtils.getBitplane(strip, band, bitIndex, bitfield, stripIndex * stripHeight);
+        }
+        return bitfield;
+    }
+    
+    /**
+     * Opens the file for reading PNG rows directly, and returns true if it is
+     * a PNG image that can be read that way.
+     */
+    private boolean openPng() throws IOException {
+        pngInputStream = new BufferedInputStream(new FileInputStream(file));
+        boolean opened = false;
+        try {
+            if(PngBitplaneReader.hasSignature(pngInputStream)) {
+                pngReader = new PngBitplaneReader(pngInputStream);
+                opened = pngReader.isSupported();
+            }
+        } finally {
+            if(!opened) {
+                closePng();
+            }
+        }
+        return opened;
+    }
+    
+    private void closePng() throws IOException {
+        if(pngReader != null) {
+            pngReader.close();
+            pngReader = null;
+        }
+        pngInputStream.close();
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if(imageReader == null) {
+            closePng();
+            return;
+        }
+        imageReader.dispose();
+        imageInputStream.close();
+    }
+}
@@ -0,0 +1,114 @@
+package com.bitwiseops.rsteg;
+
+import java.util.Arrays;
+
+/**
+ * Finds the mode (most common element) of a succession of small non-negative
+ * integers. Unlike <code>ModeFinder</code>, no objects are allocated when
+ * items are added: the counts are kept in an array indexed by value, and the
+ * mode is updated as they change.
+ */
+public class IntModeFinder {
+    private final int[] counts;
+    private int mode = -1;
+    private int total;
+    
+    /**
+     * Constructs a mode finder for values in the range [0, <code>domainSize
+     * </code>).
+     */
+    public IntModeFinder(int domainSize) {
+        counts = new int[domainSize];
+    }
+    
+    public void add(int value) {
+        int count = ++counts[value];
+        total++;
+        /*
+         * Strict comparison, so that among values with equal counts the one
+         * that reached that count first remains the mode.
+         */
+        if(mode < 0 || count > counts[mode]) {
+            mode = value;
+        }
+    }
+    
+    public int getMode() {
+        return mode;
+    }
+    
+    public boolean hasMode() {
+        return mode >= 0;
+    }
+    
+    /**
+     * Returns the number of times <code>value</code> has been added.
+     */
+    public int getCount(int value) {
+        return counts[value];
+    }
+    
+    /**
+     * Returns the total number of values added.
+     */
+    public int getTotal() {
+        return total;
+    }
+    
+    /**
+     * Returns the difference between the counts of the mode and of the
+     * runner-up, or 0 if nothing has been added.
+     */
+    public int getMargin() {
+        if(!hasMode()) {
+            return 0;
+        }
+        int runnerUpCount = 0;
+        for(int value = 0; value < counts.length; value++) {
+            if(value != mode && counts[value] > runnerUpCount) {
+                runnerUpCount = counts[value];
+            }
+        }
+        return counts[mode] - runnerUpCount;
+    }
+    
+    /**
+     * Returns up to <code>k</code> values that have been added, in order of
+     * decreasing count, starting with the mode.
+     */
+    public int[] getTopValues(int k) {
+        int[] topValues = new int[Math.min(k, counts.length)];
+        int topValueCount = 0;
+        if(hasMode() && topValues.length > 0) {
+            topValues[topValueCount++] = mode;
+        }
+        while(topValueCount < topValues.length) {
+            int best = -1;
+            for(int value = 0; value < counts.length; value++) {
+                if(counts[value] > 0 && (best < 0 || counts[value] > counts[best]) && !contains(topValues, topValueCount, value)) {
+                    best = value;
+                }
+            }
+            if(best < 0) {
+                break;
+            }
+            topValues[topValueCount++] = best;
+        }
+        return Arrays.copyOf(topValues, topValueCount);
+    }
+    
+    public void reset() {
+        Arrays.fill(counts, 0);
+        mode = -1;
+        total = 0;
+    }
+    
+    private static boolean contains(int[] values, int length, int value) {
+        for(int i = 0; i < length; i++) {
+            if(values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
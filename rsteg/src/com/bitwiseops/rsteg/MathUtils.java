@@ -1,9 +1,26 @@
 package com.bitwiseops.rsteg;
 
 public final class MathUtils {
+    /**
+     * The odd integer closest to 2^64 divided by the golden ratio, used to
+     * step a counter whose values are passed through <code>mix64</code>.
+     */
+    public static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    
     private MathUtils() {}
     
     public static int ceilDivide(int n, int d) {
         return (n + d - 1) / d;
     }
+    
+    /**
+     * Scrambles the bits of <code>z</code> with the finalizer of the
+     * SplitMix64 generator. Applied to consecutive multiples of <code>
+     * GOLDEN_GAMMA</code>, this gives a counter-based pseudorandom sequence.
+     */
+    public static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
 }
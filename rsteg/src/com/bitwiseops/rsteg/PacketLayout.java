@@ -0,0 +1,99 @@
+package com.bitwiseops.rsteg;
+
+/**
+ * Describes how a message of a given length is split into packets. Every
+ * group of <code>groupSize</code> packets fills a group of patches, and all
+ * packets have <code>packetLength</code> symbols except those of the last
+ * group, which may be shorter.
+ * <p>
+ * If the tail is shortened, the symbols of the last group are spread evenly
+ * over its packets, each of which is encoded into a shortened codeword. A
+ * group of patches holds as many patches as its codewords have symbols, so
+ * the last group then needs only as many patches as its packets need, and a
+ * short message does not take up a whole group. Otherwise the last packet is
+ * padded to the full length, as in images written before tails were
+ * shortened.
+ */
+class PacketLayout {
+    private final int packetLength;
+    private final int packetCount;
+    private final int tailStartIndex;
+    private final int tailPacketLength;
+    
+    /**
+     * Constructs the layout of <code>byteCount</code> bytes, including the
+     * length word and the checksum, in packets of up to <code>packetLength
+     * </code> symbols.
+     */
+    public PacketLayout(int packetLength, int groupSize, int byteCount, boolean shortenedTail) {
+        int symbolCount = MathUtils.ceilDivide(byteCount, 3) * 2;
+        this.packetLength = packetLength;
+        this.packetCount = MathUtils.ceilDivide(symbolCount, packetLength);
+        this.tailStartIndex = (packetCount - 1) / groupSize * groupSize;
+        if(shortenedTail) {
+            int tailSymbolCount = symbolCount - tailStartIndex * packetLength;
+            this.tailPacketLength = MathUtils.ceilDivide(tailSymbolCount, 2 * (packetCount - tailStartIndex)) * 2;
+        } else {
+            this.tailPacketLength = packetLength;
+        }
+    }
+    
+    /**
+     * Constructs the layout of a single group of <code>packetCount</code>
+     * packets of <code>packetLength</code> symbols.
+     */
+    public PacketLayout(int packetLength, int packetCount) {
+        this.packetLength = packetLength;
+        this.packetCount = packetCount;
+        this.tailStartIndex = 0;
+        this.tailPacketLength = packetLength;
+    }
+    
+    public int getPacketCount() {
+        return packetCount;
+    }
+    
+    /**
+     * Returns the index of the first packet of the last group.
+     */
+    public int getTailStartIndex() {
+        return tailStartIndex;
+    }
+    
+    /**
+     * Returns the number of symbols of packet number <code>packetIndex
+     * </code>.
+     */
+    public int getPacketLength(int packetIndex) {
+        return (packetIndex < tailStartIndex) ? packetLength : tailPacketLength;
+    }
+    
+    /**
+     * Returns the position of the first symbol of packet number <code>
+     * packetIndex</code> when the packets are stored back to back, as <code>
+     * RStegPacketOutputStream</code> stores them. The packets of a shortened
+     * tail simply follow each other, so the symbols of the tail need not be
+     * moved when it is shortened.
+     */
+    public int getPacketOffset(int packetIndex) {
+        if(packetIndex <= tailStartIndex) {
+            return packetIndex * packetLength;
+        }
+        return tailStartIndex * packetLength + (packetIndex - tailStartIndex) * tailPacketLength;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if(!(obj instanceof PacketLayout)) {
+            return false;
+        }
+        PacketLayout other = (PacketLayout)obj;
+        return packetLength == other.packetLength && packetCount == other.packetCount
+                && tailStartIndex == other.tailStartIndex && tailPacketLength == other.tailPacketLength;
+    }
+    
+    @Override
+    public int hashCode() {
+        return ((packetLength * 31 + packetCount) * 31 + tailStartIndex) * 31 + tailPacketLength;
+    }
+}
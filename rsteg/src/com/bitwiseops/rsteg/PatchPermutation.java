@@ -0,0 +1,94 @@
+package com.bitwiseops.rsteg;
+
+/**
+ * A keyed pseudorandom permutation of the integers in [0, <code>size</code>),
+ * computed on demand rather than stored. Both directions take constant
+ * expected time and no memory beyond the round keys.
+ * <p>
+ * The permutation is a balanced Feistel network over the smallest domain of
+ * <code>2^(2 * halfBits)</code> values that covers [0, <code>size</code>).
+ * Values that land outside the range are passed through the network again
+ * (cycle walking) until they land inside it, which takes fewer than four
+ * passes on average since the domain is less than four times the range.
+ */
+public class PatchPermutation {
+    private static final int ROUND_COUNT = 4;
+    
+    private final int size;
+    private final int halfBits;
+    private final int halfMask;
+    private final long[] roundKeys = new long[ROUND_COUNT];
+    
+    public PatchPermutation(int size, long key) {
+        if(size < 0) {
+            throw new IllegalArgumentException("size must not be negative.");
+        }
+        this.size = size;
+        int bits = Math.max(2, Integer.SIZE - Integer.numberOfLeadingZeros(size - 1));
+        this.halfBits = (bits + 1) / 2;
+        this.halfMask = (1 << halfBits) - 1;
+        for(int round = 0; round < ROUND_COUNT; round++) {
+            roundKeys[round] = MathUtils.mix64(key + (round + 1) * MathUtils.GOLDEN_GAMMA);
+        }
+    }
+    
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * Returns the image of <code>value</code>. For patches, this is the slot
+     * that patch number <code>value</code> is stored in.
+     */
+    public int forward(int value) {
+        checkRange(value);
+        do {
+            value = encrypt(value);
+        } while(value >= size);
+        return value;
+    }
+    
+    /**
+     * Returns the value whose image is <code>value</code>. For patches, this
+     * is the number of the patch stored in slot <code>value</code>.
+     */
+    public int inverse(int value) {
+        checkRange(value);
+        do {
+            value = decrypt(value);
+        } while(value >= size);
+        return value;
+    }
+    
+    private int encrypt(int value) {
+        int left = value >>> halfBits;
+        int right = value & halfMask;
+        for(int round = 0; round < ROUND_COUNT; round++) {
+            int newRight = left ^ roundFunction(round, right);
+            left = right;
+            right = newRight;
+        }
+        return (left << halfBits) | right;
+    }
+    
+    private int decrypt(int value) {
+        int left = value >>> halfBits;
+        int right = value & halfMask;
+        for(int round = ROUND_COUNT - 1; round >= 0; round--) {
+            int newLeft = right ^ roundFunction(round, left);
+            right = left;
+            left = newLeft;
+        }
+        return (left << halfBits) | right;
+    }
+    
+    private int roundFunction(int round, int half) {
+        return (int)MathUtils.mix64(roundKeys[round] ^ half) & halfMask;
+    }
+    
+    private void checkRange(int value) {
+        if(value < 0 || value >= size) {
+            throw new IndexOutOfBoundsException("value " + value + " is out of range for size " + size + ".");
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package com.bitwiseops.rsteg;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Extracts a bitplane directly from the compressed data of a PNG image,
+ * without constructing a <code>BufferedImage</code>. Rows are inflated and
+ * unfiltered one at a time, and only the selected bit of each pixel is kept.
+ * <p>
+ * Only formats whose samples are identical to the corresponding components of
+ * a <code>TYPE_INT_ARGB</code> conversion are supported: non-interlaced 8-bit
+ * truecolor (with or without alpha) and indexed color. Other images should be
+ * read through <code>ImageStripReader</code> instead, which in turn uses
+ * <code>readPixels</code> to read the supported ones a strip at a time.
+ */
+public class PngBitplaneReader implements Closeable {
+    private static final int COLOR_TYPE_INDEXED = 3;
+    private static final int INFLATER_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_HEADER_CHUNK_LENGTH = 3 * 256;// a full palette
+    
+    private final DataInputStream inputStream;
+    private int width, height;
+    private int bitDepth;
+    private int colorType;
+    private int interlaceMethod;
+    private byte[] palette;
+    private byte[] paletteAlpha;
+    private boolean transparencyPresent;
+    private int firstIdatLength = -1;
+    private Inflater inflater;// null until the rows are read
+    private DataInputStream rowInputStream;
+    private int samplesPerPixel;
+    private int bytesPerPixel;
+    private byte[] row;
+    private byte[] previousRow;
+    private int nextRowIndex;
+    
+    /**
+     * Reads the chunks of a PNG stream up to the first image data chunk.
+     * <code>inputStream</code> is left positioned in that chunk.
+     */
+    public PngBitplaneReader(InputStream inputStream) throws IOException {
+        this.inputStream = new DataInputStream(inputStream);
+        byte[] signature = new byte[PngStripWriter.SIGNATURE.length];
+        this.inputStream.readFully(signature);
+        if(!Arrays.equals(signature, PngStripWriter.SIGNATURE)) {
+            throw new IOException("Not a PNG file.");
+        }
+        
+        while(firstIdatLength < 0) {
+            int length = readChunkLength();
+            String type = readChunkType();
+            if(type.equals("IDAT")) {
+                firstIdatLength = length;
+            } else if(type.equals("IEND")) {
+                throw new IOException("PNG file contains no image data.");
+            } else if(type.equals("IHDR") || type.equals("PLTE") || type.equals("tRNS")) {
+                if(length > MAX_HEADER_CHUNK_LENGTH) {
+                    throw new IOException("Invalid PNG " + type + " chunk length.");
+                }
+                byte[] data = new byte[length];
+                this.inputStream.readFully(data);
+                this.inputStream.readInt();// CRC
+                readHeaderChunk(type, data);
+            } else {
+                // Other chunks are skipped rather than held in memory
+                skipFully(length + 4L);// data and CRC
+            }
+        }
+    }
+    
+    /**
+     * Returns true if <code>inputStream</code>, which must support marking,
+     * starts with the PNG signature. The stream position is not changed.
+     */
+    public static boolean hasSignature(InputStream inputStream) throws IOException {
+        byte[] signature = new byte[PngStripWriter.SIGNATURE.length];
+        inputStream.mark(signature.length);
+        int length = 0;
+        while(length < signature.length) {
+            int n = inputStream.read(signature, length, signature.length - length);
+            if(n < 0) {
+                break;
+            }
+            length += n;
+        }
+        inputStream.reset();
+        return Arrays.equals(signature, PngStripWriter.SIGNATURE);
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Returns true if <code>readBitplane</code> can handle this image.
+     */
+    public boolean isSupported() {
+        if(interlaceMethod != 0) {
+            return false;
+        }
+        switch(colorType) {
+        case PngStripWriter.COLOR_TYPE_TRUECOLOR:
+            return bitDepth == 8 && !transparencyPresent;
+        case PngStripWriter.COLOR_TYPE_TRUECOLOR_ALPHA:
+            return bitDepth == 8;
+        case COLOR_TYPE_INDEXED:
+            return palette != null;
+        default:
+            return false;
+        }
+    }
+    
+    /**
+     * Returns true if the pixels of the image have an alpha component once
+     * read, as they do with a palette that has transparency.
+     */
+    public boolean hasAlpha() {
+        return colorType == PngStripWriter.COLOR_TYPE_TRUECOLOR_ALPHA || (colorType == COLOR_TYPE_INDEXED && paletteAlpha != null);
+    }
+    
+    /**
+     * Extracts bit <code>bitIndex</code> of band <code>band</code> (numbered
+     * as in <code>BufferedImageUtils</code>, with band 0 being alpha) from
+     * every pixel of the image.
+     */
+    public Bitfield2D readBitplane(int band, int bitIndex) throws IOException {
+        startRows();
+        
+        /*
+         * Map every possible sample value of the selected component to its bit,
+         * which also takes care of palette lookups and a missing alpha band.
+         */
+        int bitsPerPixel = samplesPerPixel * bitDepth;
+        int[] bitLookup = new int[1 << Math.min(bitsPerPixel, 8)];
+        int sampleOffset = 0;
+        for(int value = 0; value < bitLookup.length; value++) {
+            int component;
+            if(colorType == COLOR_TYPE_INDEXED) {
+                component = paletteComponent(value, band);
+            } else if(band == 0 && samplesPerPixel == 3) {
+                component = 0xff;
+            } else {
+                component = value;
+            }
+            bitLookup[value] = (component >>> bitIndex) & 1;
+        }
+        if(colorType != COLOR_TYPE_INDEXED) {
+            sampleOffset = (band == 0) ? (samplesPerPixel == 4 ? 3 : 0) : band - 1;
+        }
+        
+        Bitfield2D bitfield = new Bitfield2D(width, height);
+        try {
+            for(int y = 0; y < height; y++) {
+                byte[] row = nextRow();
+                for(int x = 0; x < width; x += Bitfield2D.BITS_PER_ELEMENT) {
+                    int element = 0;
+                    for(int xi = 0; xi < Bitfield2D.BITS_PER_ELEMENT && x + xi < width; xi++) {
+                        int sample;
+                        if(bitDepth == 8) {
+                            sample = row[(x + xi) * samplesPerPixel + sampleOffset] & 0xff;
+                        } else {
+                            sample = packedSample(row, x + xi);
+                        }
+                        element |= bitLookup[sample] << xi;
+                    }
+                    bitfield.data[bitfield.posToIndex(x, y)] = element;
+                }
+            }
+        } finally {
+            close();
+        }
+        return bitfield;
+    }
+    
+    /**
+     * Reads the next <code>rowCount</code> rows of the image into <code>
+     * pixels</code>, one after the other, as <code>TYPE_INT_ARGB</code>
+     * values. Rows are only inflated as they are read, so reading the whole
+     * image this way takes a single pass over its data, however it is split.
+     */
+    public void readPixels(int[] pixels, int rowCount) throws IOException {
+        startRows();
+        if(nextRowIndex + rowCount > height) {
+            throw new IndexOutOfBoundsException("Not enough rows left.");
+        }
+        
+        int[] paletteArgb = null;
+        if(colorType == COLOR_TYPE_INDEXED) {
+            paletteArgb = new int[1 << bitDepth];
+            for(int index = 0; index < paletteArgb.length; index++) {
+                paletteArgb[index] = paletteComponent(index, 0) << 24 | paletteComponent(index, 1) << 16
+                        | paletteComponent(index, 2) << 8 | paletteComponent(index, 3);
+            }
+        }
+        
+        for(int y = 0; y < rowCount; y++) {
+            byte[] row = nextRow();
+            int offset = y * width;
+            for(int x = 0; x < width; x++) {
+                if(paletteArgb != null) {
+                    pixels[offset + x] = paletteArgb[(bitDepth == 8) ? row[x] & 0xff : packedSample(row, x)];
+                } else {
+                    int i = x * samplesPerPixel;
+                    int alpha = (samplesPerPixel == 4) ? row[i + 3] & 0xff : 0xff;
+                    pixels[offset + x] = alpha << 24 | (row[i] & 0xff) << 16 | (row[i + 1] & 0xff) << 8 | (row[i + 2] & 0xff);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Releases the inflater. The underlying stream belongs to the caller.
+     */
+    @Override
+    public void close() {
+        if(inflater != null) {
+            inflater.end();
+        }
+    }
+    
+    private void startRows() {
+        if(!isSupported()) {
+            throw new UnsupportedOperationException("PNG format not supported.");
+        }
+        if(inflater != null) {
+            return;
+        }
+        switch(colorType) {
+        case PngStripWriter.COLOR_TYPE_TRUECOLOR:
+            samplesPerPixel = 3;
+            break;
+        case PngStripWriter.COLOR_TYPE_TRUECOLOR_ALPHA:
+            samplesPerPixel = 4;
+            break;
+        default:
+            samplesPerPixel = 1;
+            break;
+        }
+        int bitsPerPixel = samplesPerPixel * bitDepth;
+        bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+        int rowLength = MathUtils.ceilDivide(width * bitsPerPixel, 8);
+        row = new byte[rowLength];
+        previousRow = new byte[rowLength];
+        inflater = new Inflater();
+        rowInputStream = new DataInputStream(new InflaterInputStream(new IdatInputStream(), inflater, INFLATER_BUFFER_SIZE));
+    }
+    
+    /**
+     * Inflates and unfilters the next row. The returned array is reused by
+     * the row after next.
+     */
+    private byte[] nextRow() throws IOException {
+        byte[] temp = previousRow;
+        previousRow = row;
+        row = temp;
+        int filterType = rowInputStream.readUnsignedByte();
+        rowInputStream.readFully(row);
+        unfilterRow(filterType, row, previousRow, bytesPerPixel);
+        nextRowIndex++;
+        return row;
+    }
+    
+    /**
+     * Returns the sample of pixel <code>x</code> in a row of samples smaller
+     * than a byte.
+     */
+    private int packedSample(byte[] row, int x) {
+        int bitOffset = x * bitDepth;
+        return ((row[bitOffset >>> 3] & 0xff) >>> (8 - bitDepth - (bitOffset & 7))) & ((1 << bitDepth) - 1);
+    }
+    
+    private int paletteComponent(int index, int band) {
+        if(index * 3 >= palette.length) {
+            return 0;
+        }
+        if(band == 0) {
+            return (paletteAlpha != null && index < paletteAlpha.length) ? paletteAlpha[index] & 0xff : 0xff;
+        }
+        return palette[index * 3 + band - 1] & 0xff;
+    }
+    
+    private void readHeaderChunk(String type, byte[] data) throws IOException {
+        if(type.equals("IHDR")) {
+            DataInputStream headerInputStream = new DataInputStream(new ByteArrayInputStream(data));
+            width = headerInputStream.readInt();
+            height = headerInputStream.readInt();
+            bitDepth = headerInputStream.readUnsignedByte();
+            colorType = headerInputStream.readUnsignedByte();
+            headerInputStream.readUnsignedByte();// compression method
+            headerInputStream.readUnsignedByte();// filter method
+            interlaceMethod = headerInputStream.readUnsignedByte();
+            if(width <= 0 || height <= 0) {
+                throw new IOException("Invalid PNG image size.");
+            }
+        } else if(type.equals("PLTE")) {
+            palette = data;
+        } else if(type.equals("tRNS")) {
+            transparencyPresent = true;
+            paletteAlpha = data;
+        }
+    }
+    
+    /**
+     * Reads a chunk length, which the PNG specification limits to 2^31-1.
+     */
+    private int readChunkLength() throws IOException {
+        int length = inputStream.readInt();
+        if(length < 0) {
+            throw new IOException("Invalid PNG chunk length.");
+        }
+        return length;
+    }
+    
+    private void skipFully(long length) throws IOException {
+        while(length > 0) {
+            int skipped = inputStream.skipBytes((int)Math.min(length, Integer.MAX_VALUE));
+            if(skipped <= 0) {
+                inputStream.readByte();// throws EOFException at the end of the stream
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+    
+    private String readChunkType() throws IOException {
+        byte[] type = new byte[4];
+        inputStream.readFully(type);
+        return new String(type, "US-ASCII");
+    }
+    
+    /**
+     * Reverses the filter applied to <code>row</code> in place.
+     */
+    static void unfilterRow(int filterType, byte[] row, byte[] previousRow, int bytesPerPixel) throws IOException {
+        switch(filterType) {
+        case PngStripWriter.FILTER_NONE:
+            break;
+        case PngStripWriter.FILTER_SUB:
+            for(int i = bytesPerPixel; i < row.length; i++) {
+                row[i] += row[i - bytesPerPixel];
+            }
+            break;
+        case PngStripWriter.FILTER_UP:
+            for(int i = 0; i < row.length; i++) {
+                row[i] += previousRow[i];
+            }
+            break;
+        case PngStripWriter.FILTER_AVERAGE:
+            for(int i = 0; i < row.length; i++) {
+                int a = (i >= bytesPerPixel) ? row[i - bytesPerPixel] & 0xff : 0;
+                row[i] += (a + (previousRow[i] & 0xff)) >>> 1;
+            }
+            break;
+        case PngStripWriter.FILTER_PAETH:
+            for(int i = 0; i < row.length; i++) {
+                int a = (i >= bytesPerPixel) ? row[i - bytesPerPixel] & 0xff : 0;
+                int c = (i >= bytesPerPixel) ? previousRow[i - bytesPerPixel] & 0xff : 0;
+                row[i] += PngStripWriter.paethPredictor(a, previousRow[i] & 0xff, c);
+            }
+            break;
+        default:
+            throw new IOException("Invalid PNG filter type.");
+        }
+    }
+    
+    /**
+     * Presents the contents of consecutive IDAT chunks as one stream.
+     */
+    private class IdatInputStream extends InputStream {
+        private int remaining = firstIdatLength;
+        private boolean ended;
+        
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == 1) ? b[0] & 0xff : -1;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while(remaining == 0) {
+                if(ended) {
+                    return -1;
+                }
+                inputStream.readInt();// CRC
+                remaining = readChunkLength();
+                if(!readChunkType().equals("IDAT")) {
+                    ended = true;
+                    remaining = 0;
+                    return -1;
+                }
+            }
+            int length = inputStream.read(b, off, Math.min(len, remaining));
+            if(length < 0) {
+                throw new IOException("Unexpected end of PNG file.");
+            }
+            remaining -= length;
+            return length;
+        }
+        
+        @Override
+        public void close() {
+            // The underlying stream belongs to the caller
+        }
+    }
+}
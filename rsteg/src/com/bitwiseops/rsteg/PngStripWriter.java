@@ -0,0 +1,431 @@
+package com.bitwiseops.rsteg;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 8-bit truecolor PNG images strip by strip. Each row is filtered with
+ * the filter type that minimizes the sum of absolute differences, as
+ * recommended by the PNG specification.
+ * <p>
+ * Rows are grouped into segments of about a megabyte, which are filtered and
+ * compressed concurrently into independent raw deflate streams. Every segment
+ * but the last ends with a sync flush on a byte boundary, so the segments can
+ * simply be concatenated into one zlib stream; its Adler-32 checksum is
+ * combined from the checksums of the segments.
+ */
+public class PngStripWriter implements StripImageWriter {
+    static final byte[] SIGNATURE = {(byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    static final int COLOR_TYPE_TRUECOLOR = 2;
+    static final int COLOR_TYPE_TRUECOLOR_ALPHA = 6;
+    static final int FILTER_NONE = 0;
+    static final int FILTER_SUB = 1;
+    static final int FILTER_UP = 2;
+    static final int FILTER_AVERAGE = 3;
+    static final int FILTER_PAETH = 4;
+    private static final int FILTER_COUNT = 5;
+    private static final int MAX_CHUNK_LENGTH = 1 << 16;
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int MAX_PENDING_SEGMENTS_PER_THREAD = 2;
+    private static final int ADLER_BASE = 65521;
+    
+    private final DataOutputStream outputStream;
+    private final OutputStream idatOutputStream;
+    private final int width, height;
+    private final int bytesPerPixel;
+    private final int rowLength;
+    private final int compressionLevel;
+    private final int segmentRows;
+    private final ExecutorService executor;
+    private final int maxPendingSegments;
+    private final Queue<Future<Segment>> pendingSegments = new ArrayDeque<Future<Segment>>();
+    private byte[] segmentBytes;
+    private int segmentRowCount;
+    private byte[] previousRowBytes;
+    private int[] stripPixels;
+    private int rowsWritten;
+    private int adler32 = 1;
+    
+    public PngStripWriter(OutputStream outputStream, int width, int height, boolean hasAlpha) throws IOException {
+        this(outputStream, width, height, hasAlpha, Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Constructs a writer that compresses with <code>compressionLevel</code>
+     * (0-9, or <code>Deflater.DEFAULT_COMPRESSION</code>) on <code>
+     * threadCount</code> threads.
+     */
+    public PngStripWriter(OutputStream outputStream, int width, int height, boolean hasAlpha, int compressionLevel, int threadCount) throws IOException {
+        if(compressionLevel != Deflater.DEFAULT_COMPRESSION && (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Invalid compression level.");
+        }
+        if(threadCount <= 0) {
+            throw new IllegalArgumentException("threadCount must be positive.");
+        }
+        this.outputStream = new DataOutputStream(outputStream);
+        this.width = width;
+        this.height = height;
+        this.bytesPerPixel = hasAlpha ? 4 : 3;
+        this.rowLength = width * bytesPerPixel;
+        this.compressionLevel = compressionLevel;
+        this.segmentRows = Math.max(1, SEGMENT_SIZE / rowLength);
+        this.segmentBytes = new byte[segmentRows * rowLength];
+        this.previousRowBytes = new byte[rowLength];
+        this.maxPendingSegments = threadCount * MAX_PENDING_SEGMENTS_PER_THREAD;
+        
+        this.outputStream.write(SIGNATURE);
+        writeHeader(this.outputStream, width, height, hasAlpha ? COLOR_TYPE_TRUECOLOR_ALPHA : COLOR_TYPE_TRUECOLOR);
+        idatOutputStream = new BufferedOutputStream(new ChunkOutputStream(this.outputStream, "IDAT"), MAX_CHUNK_LENGTH);
+        idatOutputStream.write(zlibHeader(compressionLevel));
+        // started last, so that a failed write above leaves no threads behind
+        this.executor = Executors.newFixedThreadPool(threadCount);
+    }
+    
+    @Override
+    public void writeStrip(BufferedImage strip) throws IOException {
+        int stripHeight = strip.getHeight();
+        if(strip.getWidth() != width || rowsWritten + stripHeight > height) {
+            throw new IllegalArgumentException("Strip does not fit in the image.");
+        }
+        if(stripPixels == null || stripPixels.length < width * stripHeight) {
+            stripPixels = new int[width * stripHeight];
+        }
+        strip.getRaster().getDataElements(0, 0, width, stripHeight, stripPixels);
+        
+        for(int y = 0; y < stripHeight; y++) {
+            unpackRow(stripPixels, y * width, width, bytesPerPixel, segmentBytes, segmentRowCount * rowLength);
+            segmentRowCount++;
+            rowsWritten++;
+            if(segmentRowCount == segmentRows || rowsWritten == height) {
+                submitSegment();
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        try {
+            if(rowsWritten != height) {
+                throw new IOException("Not all rows of the image were written.");
+            }
+            while(!pendingSegments.isEmpty()) {
+                writeSegment(pendingSegments.remove());
+            }
+            DataOutputStream adlerOutputStream = new DataOutputStream(idatOutputStream);
+            adlerOutputStream.writeInt(adler32);
+            idatOutputStream.flush();
+            writeChunk(outputStream, "IEND", new byte[0], 0, 0);
+        } finally {
+            try {
+                outputStream.close();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+    
+    private void submitSegment() throws IOException {
+        Segment segment = new Segment(segmentBytes, segmentRowCount, rowLength, previousRowBytes, bytesPerPixel, compressionLevel, rowsWritten == height);
+        previousRowBytes = Arrays.copyOfRange(segmentBytes, (segmentRowCount - 1) * rowLength, segmentRowCount * rowLength);
+        if(rowsWritten < height) {
+            segmentBytes = new byte[segmentRows * rowLength];
+        } else {
+            segmentBytes = null;
+        }
+        segmentRowCount = 0;
+        
+        pendingSegments.add(executor.submit(segment));
+        while(pendingSegments.size() > maxPendingSegments) {
+            writeSegment(pendingSegments.remove());
+        }
+    }
+    
+    private void writeSegment(Future<Segment> future) throws IOException {
+        Segment segment;
+        try {
+            segment = future.get();
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch(ExecutionException e) {
+            throw new IOException("Compression failed.", e.getCause());
+        }
+        idatOutputStream.write(segment.compressedBytes, 0, segment.compressedLength);
+        adler32 = combineAdler32(adler32, segment.adler32, segment.filteredLength);
+    }
+    
+    /**
+     * Returns the two byte zlib stream header for deflate compression with a
+     * 32K window, with the level hint matching <code>compressionLevel</code>.
+     */
+    private static byte[] zlibHeader(int compressionLevel) {
+        int levelFlags;
+        if(compressionLevel == Deflater.DEFAULT_COMPRESSION || compressionLevel == 6) {
+            levelFlags = 2;
+        } else if(compressionLevel < 2) {
+            levelFlags = 0;
+        } else if(compressionLevel < 6) {
+            levelFlags = 1;
+        } else {
+            levelFlags = 3;
+        }
+        int cmf = 0x78;
+        int flg = levelFlags << 6;
+        flg += 31 - ((cmf << 8) | flg) % 31;
+        return new byte[] {(byte)cmf, (byte)flg};
+    }
+    
+    /**
+     * Returns the Adler-32 checksum of the concatenation of two byte sequences,
+     * given their checksums and the length of the second one.
+     */
+    static int combineAdler32(int adler1, int adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - remainder;
+        if(sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if(sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if(sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if(sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return (int)(sum1 | (sum2 << 16));
+    }
+    
+    /**
+     * Converts <code>width</code> packed ARGB pixels starting at <code>offset
+     * </code> into RGB or RGBA samples starting at <code>rowOffset</code>.
+     */
+    static void unpackRow(int[] pixels, int offset, int width, int bytesPerPixel, byte[] rowBytes, int rowOffset) {
+        int i = rowOffset;
+        for(int x = 0; x < width; x++) {
+            int pixel = pixels[offset + x];
+            rowBytes[i++] = (byte)(pixel >>> 16);
+            rowBytes[i++] = (byte)(pixel >>> 8);
+            rowBytes[i++] = (byte)pixel;
+            if(bytesPerPixel == 4) {
+                rowBytes[i++] = (byte)(pixel >>> 24);
+            }
+        }
+    }
+    
+    /**
+     * Applies every filter type to the row starting at <code>rowOffset</code>
+     * in <code>rows</code>, given the previous row, and returns the filtered
+     * row (prefixed with its filter type byte) with the smallest sum of
+     * absolute values. <code>filteredRows</code> provides the scratch space.
+     */
+    static byte[] filterRow(byte[] rows, int rowOffset, byte[] previousRows, int previousRowOffset, int rowLength, int bytesPerPixel, byte[][] filteredRows) {
+        int bestFilter = FILTER_NONE;
+        long bestSum = Long.MAX_VALUE;
+        for(int filter = 0; filter < FILTER_COUNT; filter++) {
+            byte[] filteredRow = filteredRows[filter];
+            filteredRow[0] = (byte)filter;
+            long sum = 0;
+            for(int i = 0; i < rowLength; i++) {
+                int a = (i >= bytesPerPixel) ? rows[rowOffset + i - bytesPerPixel] & 0xff : 0;
+                int b = previousRows[previousRowOffset + i] & 0xff;
+                int c = (i >= bytesPerPixel) ? previousRows[previousRowOffset + i - bytesPerPixel] & 0xff : 0;
+                int predictor;
+                switch(filter) {
+                case FILTER_SUB:
+                    predictor = a;
+                    break;
+                case FILTER_UP:
+                    predictor = b;
+                    break;
+                case FILTER_AVERAGE:
+                    predictor = (a + b) >>> 1;
+                    break;
+                case FILTER_PAETH:
+                    predictor = paethPredictor(a, b, c);
+                    break;
+                default:
+                    predictor = 0;
+                    break;
+                }
+                byte value = (byte)(rows[rowOffset + i] - predictor);
+                filteredRow[i + 1] = value;
+                sum += Math.abs(value);
+            }
+            if(sum < bestSum) {
+                bestSum = sum;
+                bestFilter = filter;
+            }
+        }
+        return filteredRows[bestFilter];
+    }
+    
+    static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if(pa <= pb && pa <= pc) {
+            return a;
+        } else if(pb <= pc) {
+            return b;
+        } else {
+            return c;
+        }
+    }
+    
+    static void writeHeader(DataOutputStream outputStream, int width, int height, int colorType) throws IOException {
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;// bit depth
+        header[9] = (byte)colorType;
+        header[10] = 0;// compression method
+        header[11] = 0;// filter method
+        header[12] = 0;// no interlacing
+        writeChunk(outputStream, "IHDR", header, 0, header.length);
+    }
+    
+    static void writeChunk(DataOutputStream outputStream, String type, byte[] data, int offset, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, offset, length);
+        outputStream.writeInt(length);
+        outputStream.write(typeBytes);
+        outputStream.write(data, offset, length);
+        outputStream.writeInt((int)crc.getValue());
+    }
+    
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+    
+    /**
+     * Filters and compresses a group of consecutive rows into a raw deflate
+     * stream.
+     */
+    private static class Segment implements Callable<Segment> {
+        private final byte[] rowBytes;
+        private final int rowCount;
+        private final int rowLength;
+        private final byte[] previousRowBytes;
+        private final int bytesPerPixel;
+        private final int compressionLevel;
+        private final boolean last;
+        byte[] compressedBytes;
+        int compressedLength;
+        int filteredLength;
+        int adler32;
+        
+        public Segment(byte[] rowBytes, int rowCount, int rowLength, byte[] previousRowBytes, int bytesPerPixel, int compressionLevel, boolean last) {
+            this.rowBytes = rowBytes;
+            this.rowCount = rowCount;
+            this.rowLength = rowLength;
+            this.previousRowBytes = previousRowBytes;
+            this.bytesPerPixel = bytesPerPixel;
+            this.compressionLevel = compressionLevel;
+            this.last = last;
+        }
+        
+        @Override
+        public Segment call() {
+            byte[][] filteredRows = new byte[FILTER_COUNT][rowLength + 1];
+            byte[] filteredBytes = new byte[rowCount * (rowLength + 1)];
+            for(int row = 0; row < rowCount; row++) {
+                byte[] filteredRow;
+                if(row == 0) {
+                    filteredRow = filterRow(rowBytes, 0, previousRowBytes, 0, rowLength, bytesPerPixel, filteredRows);
+                } else {
+                    filteredRow = filterRow(rowBytes, row * rowLength, rowBytes, (row - 1) * rowLength, rowLength, bytesPerPixel, filteredRows);
+                }
+                System.arraycopy(filteredRow, 0, filteredBytes, row * (rowLength + 1), rowLength + 1);
+            }
+            filteredLength = filteredBytes.length;
+            Adler32 checksum = new Adler32();
+            checksum.update(filteredBytes, 0, filteredLength);
+            adler32 = (int)checksum.getValue();
+            
+            Deflater deflater = new Deflater(compressionLevel, true);
+            deflater.setInput(filteredBytes);
+            compressedBytes = new byte[filteredLength / 2 + 64];
+            if(last) {
+                deflater.finish();
+                while(!deflater.finished()) {
+                    growIfFull();
+                    compressedLength += deflater.deflate(compressedBytes, compressedLength, compressedBytes.length - compressedLength);
+                }
+            } else {
+                /*
+                 * A sync flush ends the output on a byte boundary without
+                 * marking the last block, so the next segment can follow.
+                 */
+                int length;
+                do {
+                    growIfFull();
+                    length = deflater.deflate(compressedBytes, compressedLength, compressedBytes.length - compressedLength, Deflater.SYNC_FLUSH);
+                    compressedLength += length;
+                } while(compressedLength == compressedBytes.length);
+            }
+            deflater.end();
+            return this;
+        }
+        
+        private void growIfFull() {
+            if(compressedLength == compressedBytes.length) {
+                compressedBytes = Arrays.copyOf(compressedBytes, compressedBytes.length * 2);
+            }
+        }
+    }
+    
+    /**
+     * Wraps every block of data written to it in a chunk of the given type.
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private final DataOutputStream outputStream;
+        private final String type;
+        
+        public ChunkOutputStream(DataOutputStream outputStream, String type) {
+            this.outputStream = outputStream;
+            this.type = type;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len > 0) {
+                writeChunk(outputStream, type, b, off, len);
+            }
+        }
+        
+        @Override
+        public void close() {
+            // The underlying stream is closed by the writer
+        }
+    }
+}
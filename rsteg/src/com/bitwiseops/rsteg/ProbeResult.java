@@ -0,0 +1,94 @@
+package com.bitwiseops.rsteg;
+
+import com.bitwiseops.rsteg.RStegCodec.ErrorCorrectionLevel;
+
+/**
+ * The outcome of <code>RStegCodec.probe</code>: how strongly a sample of a
+ * bitfield suggests that it holds a message, and the format the message most
+ * likely has.
+ */
+public class ProbeResult {
+    private final float parityConfidence;
+    private final int sampledPatchCount;
+    private final int validPatchCount;
+    private final int agreeingPatchCount;
+    private final int voteMargin;
+    private final int version;
+    private final ErrorCorrectionLevel ecLevel;
+    private final int codewordLength;
+    
+    ProbeResult(float parityConfidence, int sampledPatchCount, int validPatchCount, int agreeingPatchCount, int voteMargin, int version, ErrorCorrectionLevel ecLevel, int codewordLength) {
+        this.parityConfidence = parityConfidence;
+        this.sampledPatchCount = sampledPatchCount;
+        this.validPatchCount = validPatchCount;
+        this.agreeingPatchCount = agreeingPatchCount;
+        this.voteMargin = voteMargin;
+        this.version = version;
+        this.ecLevel = ecLevel;
+        this.codewordLength = codewordLength;
+    }
+    
+    /**
+     * Returns the share of sampled patch positions holding a valid patch
+     * whose metadata agrees with the most common one, from 0 to 1. An intact
+     * image encoded without sparse mode scores close to 1, and an image
+     * without a message close to 0.
+     */
+    public float getScore() {
+        return (sampledPatchCount > 0) ? (float)agreeingPatchCount / sampledPatchCount : 0;
+    }
+    
+    /**
+     * Returns true if the most common metadata beats the others by as many
+     * sampled patches as a progressive decode waits for, so that the bitfield
+     * most likely holds a message.
+     */
+    public boolean isLikely() {
+        return voteMargin >= RStegCodec.MIN_METADATA_VOTE_MARGIN;
+    }
+    
+    /**
+     * Returns the share of the sampled tiles with even parity at the most
+     * likely alignment, which is about one half for random bits and close to
+     * 1 for an intact message.
+     */
+    public float getParityConfidence() {
+        return parityConfidence;
+    }
+    
+    public int getSampledPatchCount() {
+        return sampledPatchCount;
+    }
+    
+    /**
+     * Returns the number of sampled patch positions holding a patch whose
+     * index and metadata pass their checksum, used or not.
+     */
+    public int getValidPatchCount() {
+        return validPatchCount;
+    }
+    
+    /**
+     * Returns the format version of the most common metadata, or -1 if no
+     * valid patch was found.
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Returns the error correction level of the most common metadata, or null
+     * if no valid patch was found.
+     */
+    public ErrorCorrectionLevel getErrorCorrectionLevel() {
+        return ecLevel;
+    }
+    
+    /**
+     * Returns the codeword length of the most common metadata, or 0 if no
+     * valid patch was found.
+     */
+    public int getCodewordLength() {
+        return codewordLength;
+    }
+}
@@ -1,13 +1,41 @@
 package com.bitwiseops.rsteg;
 
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 
 import com.bitwiseops.rsteg.RStegCodec.ErrorCorrectionLevel;
+import com.bitwiseops.rsteg.RStegCodec.ParityMode;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -19,6 +47,18 @@ import net.sourceforge.argparse4j.inf.Subparsers;
 
 public class RSteg {
     private static final ErrorCorrectionLevel DEFAULT_ECLEVEL = ErrorCorrectionLevel.MEDIUM;
+    private static final int BITPLANE_BAND = 1;
+    private static final int BITPLANE_BIT_INDEX = 0;
+    private static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    private static final int STREAM_BUFFER_SIZE = 4096;
+    private static final int MAX_ALIGNMENT_CANDIDATES = 16;
+    private static final String BATCH_DESCRIPTION = "Each SOURCE is an image, "
+            + "a directory or glob whose images are taken in order of name, or "
+            + "a manifest file listing one image per line. Every image is "
+            + "attempted even if others fail, and one tab-separated line is "
+            + "written per image: the path, ok or failed, the message length, "
+            + "the time in milliseconds, and the output path or the error. A "
+            + "throughput summary follows on standard error.";
     
     public static void main(String[] args) {
         ArgumentParser argParser = ArgumentParsers.newArgumentParser("rsteg");
@@ -43,15 +83,14 @@ public class RSteg {
                 .metavar("OUTPUT")
                 .type(Arguments.fileType().verifyCanCreate())
                 .help("path where the output image will be saved");
-        encodeParser.addArgument("-m", "--message")
-                .help("use this message instead of reading from stdin");
-        int maxEcLevel = RStegCodec.ErrorCorrectionLevel.values().length - 1;
-        int defaultEcLevel = DEFAULT_ECLEVEL.ordinal();
-        encodeParser.addArgument("-l", "--eclevel")
+        encodeParser.addArgument("-t", "--threads")
                 .type(Integer.class)
-                .choices(Arguments.range(0, maxEcLevel))
-                .setDefault(defaultEcLevel)
-                .help(String.format("error correction level, %d is default", defaultEcLevel));
+                .choices(Arguments.range(1, Integer.MAX_VALUE))
+                .setDefault(Runtime.getRuntime().availableProcessors())
+                .help("number of threads used to encode the message and "
+                        + "compress png output, defaults to the number of "
+                        + "processors");
+        addEncodeOptions(encodeParser);
         
         Subparser decodeParser = subparsers.addParser("decode");
         decodeParser.help("reveal a message hidden in an image");
@@ -65,6 +104,66 @@ public class RSteg {
         decodeParser.addArgument("-n", "--no-newline")
                 .action(Arguments.storeTrue())
                 .help("do not output a newline after the message");
+        decodeParser.addArgument("-t", "--threads")
+                .type(Integer.class)
+                .choices(Arguments.range(1, Integer.MAX_VALUE))
+                .setDefault(Runtime.getRuntime().availableProcessors())
+                .help("number of threads used to scan the image, defaults to "
+                        + "the number of processors");
+        addDecodeOptions(decodeParser);
+        
+        Subparser encodeBatchParser = subparsers.addParser("encode-batch");
+        encodeBatchParser.help("embed a message into many images");
+        encodeBatchParser.description("Combines each of many cover images "
+                + "with a message, on a pool of worker threads, and writes "
+                + "the output images to a directory under the names of the "
+                + "covers. " + BATCH_DESCRIPTION + " A manifest line may give "
+                + "the path of a file holding the message for its image after "
+                + "a tab; the other images get the message from the option or "
+                + "standard input.");
+        encodeBatchParser.setDefault("subcommand", new BatchCommand(true));
+        addBatchArguments(encodeBatchParser);
+        encodeBatchParser.addArgument("-f", "--format")
+                .choices("png", "gif", "bmp")
+                .setDefault("png")
+                .help("type of the output images, png is default");
+        encodeBatchParser.addArgument("-t", "--threads")
+                .type(Integer.class)
+                .choices(Arguments.range(1, Integer.MAX_VALUE))
+                .setDefault(1)
+                .help("number of threads used to encode each image, 1 is "
+                        + "default");
+        addEncodeOptions(encodeBatchParser);
+        
+        Subparser decodeBatchParser = subparsers.addParser("decode-batch");
+        decodeBatchParser.help("reveal the messages hidden in many images");
+        decodeBatchParser.description("Decodes the messages hidden in many "
+                + "images, on a pool of worker threads, and writes each to a "
+                + "directory under the name of its image with .msg appended. "
+                + BATCH_DESCRIPTION);
+        decodeBatchParser.setDefault("subcommand", new BatchCommand(false));
+        addBatchArguments(decodeBatchParser);
+        decodeBatchParser.addArgument("-t", "--threads")
+                .type(Integer.class)
+                .choices(Arguments.range(1, Integer.MAX_VALUE))
+                .setDefault(1)
+                .help("number of threads used to scan each image, 1 is "
+                        + "default");
+        addDecodeOptions(decodeBatchParser);
+        
+        Subparser probeParser = subparsers.addParser("probe");
+        probeParser.help("check whether images are likely to hold a message");
+        probeParser.description("Samples each image for the patches written "
+                + "by the encode command, without decoding a message, and "
+                + "writes one tab-separated line per image: the path, "
+                + "whether a message is likely, the score from 0 to 1, the "
+                + "format version, the error correction level and the "
+                + "codeword length.");
+        probeParser.setDefault("subcommand", new ProbeCommand());
+        probeParser.addArgument("images")
+                .metavar("IMAGE")
+                .nargs("+")
+                .help("paths to the images to check");
         
         Namespace namespace = null;
         try {
@@ -80,6 +179,93 @@ public class RSteg {
         }
     }
     
+    private static void addEncodeOptions(Subparser parser) {
+        parser.addArgument("-m", "--message")
+                .help("use this message instead of reading from stdin");
+        int maxEcLevel = RStegCodec.ErrorCorrectionLevel.values().length - 1;
+        int defaultEcLevel = DEFAULT_ECLEVEL.ordinal();
+        parser.addArgument("-l", "--eclevel")
+                .type(Integer.class)
+                .choices(Arguments.range(0, maxEcLevel))
+                .setDefault(defaultEcLevel)
+                .help(String.format("error correction level, %d is default", defaultEcLevel));
+        parser.addArgument("-s", "--streaming")
+                .action(Arguments.storeTrue())
+                .help("read the cover image and write the output image in "
+                        + "strips to reduce memory usage (png and bmp output only; "
+                        + "jpeg, interlaced or 16-bit png and other cover images that "
+                        + "can't be read by region are still decoded whole)");
+        parser.addArgument("-c", "--compression-level")
+                .type(Integer.class)
+                .choices(Arguments.range(0, 9))
+                .setDefault(DEFAULT_COMPRESSION_LEVEL)
+                .help(String.format("png compression level, from 0 (fastest) to 9 (smallest), %d is default", DEFAULT_COMPRESSION_LEVEL));
+        parser.addArgument("--codeword-length")
+                .type(Integer.class)
+                .setDefault(RStegCodec.DEFAULT_CODEWORD_LENGTH)
+                .help(String.format("symbols per error correction codeword, "
+                        + "a multiple of 256 up to 3840 or %d; longer "
+                        + "codewords tolerate larger damaged areas, %d is "
+                        + "default", RStegCodec.MAX_CODEWORD_LENGTH, RStegCodec.DEFAULT_CODEWORD_LENGTH));
+        parser.addArgument("-z", "--deflate")
+                .action(Arguments.storeTrue())
+                .help("compress the message before hiding it, which saves "
+                        + "space for text and other redundant data");
+        parser.addArgument("--sparse")
+                .action(Arguments.storeTrue())
+                .help("only write the pixels of the patches holding the "
+                        + "message, leaving the rest of the cover image "
+                        + "untouched");
+        parser.addArgument("--per-patch-parity")
+                .action(Arguments.storeTrue())
+                .help("derive the parity bits of each patch from its index, "
+                        + "so that patches can be packed in parallel");
+    }
+    
+    private static void addDecodeOptions(Subparser parser) {
+        parser.addArgument("-a", "--alignment-candidates")
+                .type(Integer.class)
+                .choices(Arguments.range(1, MAX_ALIGNMENT_CANDIDATES))
+                .setDefault(1)
+                .help("number of patch alignments to try concurrently when "
+                        + "the image is too damaged for one to stand out");
+        parser.addArgument("--stream")
+                .type(Integer.class)
+                .choices(Arguments.range(0, RStegCodec.MAX_STREAM_ID))
+                .setDefault(0)
+                .help("ID of the stream to decode from an image holding "
+                        + "several, 0 is default");
+        parser.addArgument("-p", "--progressive")
+                .action(Arguments.storeTrue())
+                .help("stop scanning the image once enough patches have been "
+                        + "read, which is faster for a short message in a "
+                        + "large image; the rest of the image is scanned if "
+                        + "the message does not verify");
+        parser.addArgument("-u", "--unverified")
+                .action(Arguments.storeTrue())
+                .help("write the message out as it is decoded instead of "
+                        + "once it has been verified, so that a long message "
+                        + "need not be held in memory; a checksum mismatch "
+                        + "is then only reported after all of it has been "
+                        + "written (ignored with -a or -p)");
+    }
+    
+    private static void addBatchArguments(Subparser parser) {
+        parser.addArgument("sources")
+                .metavar("SOURCE")
+                .nargs("+")
+                .help("image, directory, glob or manifest naming the images");
+        parser.addArgument("-o", "--output-dir")
+                .required(true)
+                .help("directory where the results are written");
+        parser.addArgument("-j", "--jobs")
+                .type(Integer.class)
+                .choices(Arguments.range(1, Integer.MAX_VALUE))
+                .setDefault(Runtime.getRuntime().availableProcessors())
+                .help("number of images processed at once, defaults to the "
+                        + "number of processors");
+    }
+    
     private static interface Subcommand {
         public void execute(Namespace namespace);
     }
@@ -90,34 +276,53 @@ public class RSteg {
             File coverImageFile = new File(namespace.getString("cover"));
             File outputImageFile = new File(namespace.getString("output"));
             
-            String outputFileType = fileExtension(outputImageFile.getName()).toLowerCase();
-            if(!(outputFileType.equals("png") || outputFileType.equals("gif") || outputFileType.equals("bmp"))) {
-                System.err.println(String.format("Unsupported output file type \"%s\".", outputFileType));
-                System.exit(1);
-            }
-            
+            /*
+             * The message is encoded as it is read, so it doesn't need to be
+             * buffered in memory.
+             */
             String message = namespace.getString("message");
-            byte[] data = null;
+            InputStream data;
             if(message != null) {
-                data = message.getBytes();
+                data = new ByteArrayInputStream(message.getBytes());
             } else {
-                try {
-                    data = IOUtils.readStreamFully(System.in);
-                } catch(IOException e) {
-                    System.err.println(e);
-                    System.exit(1);
-                }
+                data = System.in;
             }
             
-            ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.values()[namespace.getInt("eclevel")];
-            
-            BufferedImage coverImage = null;
             try {
-                coverImage = ImageIO.read(coverImageFile);
-            } catch(IOException e) {
+                encodeImage(namespace, coverImageFile, outputImageFile, data);
+            } catch(IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            } catch(CodecException | IOException e) {
                 System.err.println(e);
                 System.exit(1);
             }
+        }
+        
+        /**
+         * Combines the cover image with the message read from <code>data
+         * </code> and writes the output image, of the type given by its file
+         * extension. Returns the number of pixels in the image.
+         */
+        static long encodeImage(Namespace namespace, File coverImageFile, File outputImageFile, InputStream data) throws CodecException, IOException {
+            String outputFileType = fileExtension(outputImageFile.getName()).toLowerCase();
+            if(!(outputFileType.equals("png") || outputFileType.equals("gif") || outputFileType.equals("bmp"))) {
+                throw new IllegalArgumentException(String.format("Unsupported output file type \"%s\".", outputFileType));
+            }
+            
+            ErrorCorrectionLevel ecLevel = ErrorCorrectionLevel.values()[namespace.getInt("eclevel")];
+            
+            if(namespace.getBoolean("streaming")) {
+                if(outputFileType.equals("gif")) {
+                    throw new IllegalArgumentException("Streaming output is only supported for png and bmp files.");
+                }
+                return encodeStreaming(namespace, coverImageFile, outputImageFile, outputFileType, data, ecLevel);
+            }
+            
+            BufferedImage coverImage = ImageIO.read(coverImageFile);
+            if(coverImage == null) {
+                throw new IOException("Unsupported cover image format.");
+            }
             
             int width = coverImage.getWidth();
             int height = coverImage.getHeight();
@@ -127,28 +332,100 @@ public class RSteg {
             intermediateGraphics.drawImage(coverImage, 0, 0, null);
             intermediateGraphics.dispose();
             Bitfield2D bitfield = new Bitfield2D(width, height);
-            RStegCodec rStegCodec = new RStegCodec();
-            rStegCodec.setTargetBitfield(bitfield);
-            rStegCodec.setErrorCorrectionLevel(ecLevel);
-            try {
-                rStegCodec.encode(data, 0, data.length);
-            } catch(CodecException e) {
-                System.err.println(e);
-                System.exit(1);
+            List<Rectangle> regions = encodeBitfield(bitfield, data, ecLevel, namespace);
+            if(namespace.getBoolean("sparse")) {
+                BufferedImageUtils.putBitplane(intermediateImage, BITPLANE_BAND, BITPLANE_BIT_INDEX, bitfield, regions);
+            } else {
+                BufferedImageUtils.putBitplane(intermediateImage, BITPLANE_BAND, BITPLANE_BIT_INDEX, bitfield);
+            }
+            
+            if(outputFileType.equals("png")) {
+                /*
+                 * The built-in png writer compresses on several threads, and
+                 * can take the intermediate image as it is.
+                 */
+                int stripHeight = ImageStripReader.DEFAULT_STRIP_HEIGHT;
+                try(StripImageWriter stripWriter = createStripWriter(namespace, outputImageFile, outputFileType, width, height, coverImage.getColorModel().hasAlpha())) {
+                    for(int y = 0; y < height; y += stripHeight) {
+                        stripWriter.writeStrip(intermediateImage.getSubimage(0, y, width, Math.min(stripHeight, height - y)));
+                    }
+                }
+                return (long)width * height;
             }
-            BufferedImageUtils.putBitplane(intermediateImage, 1, 0, bitfield);
             
             BufferedImage outputImage = new BufferedImage(coverImage.getColorModel(), coverImage.copyData(null), coverImage.isAlphaPremultiplied(), null);
             Graphics2D outputGraphics = outputImage.createGraphics();
             outputGraphics.drawImage(intermediateImage, 0, 0, null);
             outputGraphics.dispose();
             
+            ImageIO.write(outputImage, outputFileType, outputImageFile);
+            return (long)width * height;
+        }
+        
+        /**
+         * Embeds the message one strip at a time, so that neither the cover
+         * image nor the output image is ever fully decoded in memory, unless
+         * <code>ImageStripReader</code> has to decode a cover image whole.
+         */
+        private static long encodeStreaming(Namespace namespace, File coverImageFile, File outputImageFile, String outputFileType, InputStream data, ErrorCorrectionLevel ecLevel) throws CodecException, IOException {
+            try(ImageStripReader stripReader = new ImageStripReader(coverImageFile)) {
+                int width = stripReader.getWidth();
+                int height = stripReader.getHeight();
+                Bitfield2D bitfield = new Bitfield2D(width, height);
+                List<Rectangle> regions = encodeBitfield(bitfield, data, ecLevel, namespace);
+                
+                try(StripImageWriter stripWriter = createStripWriter(namespace, outputImageFile, outputFileType, width, height, stripReader.hasAlpha())) {
+                    for(int stripIndex = 0; stripIndex < stripReader.getStripCount(); stripIndex++) {
+                        BufferedImage strip = stripReader.readStrip(stripIndex);
+                        int yOffset = stripIndex * stripReader.getStripHeight();
+                        if(namespace.getBoolean("sparse")) {
+                            BufferedImageUtils.putBitplane(strip, BITPLANE_BAND, BITPLANE_BIT_INDEX, bitfield, yOffset, regions);
+                        } else {
+                            BufferedImageUtils.putBitplane(strip, BITPLANE_BAND, BITPLANE_BIT_INDEX, bitfield, yOffset);
+                        }
+                        stripWriter.writeStrip(strip);
+                    }
+                }
+                return (long)width * height;
+            }
+        }
+        
+        private static StripImageWriter createStripWriter(Namespace namespace, File outputImageFile, String outputFileType, int width, int height, boolean hasAlpha) throws IOException {
+            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputImageFile));
+            StripImageWriter stripWriter = null;
             try {
-                ImageIO.write(outputImage, outputFileType, outputImageFile);
-            } catch(IOException e) {
-                System.err.println(e);
-                System.exit(1);
+                if(outputFileType.equals("png")) {
+                    int compressionLevel = namespace.getInt("compression_level");
+                    int threadCount = namespace.getInt("threads");
+                    stripWriter = new PngStripWriter(outputStream, width, height, hasAlpha, compressionLevel, threadCount);
+                } else {
+                    stripWriter = new BmpStripWriter(outputStream, width, height);
+                }
+            } finally {
+                if(stripWriter == null) {
+                    outputStream.close();
+                }
             }
+            return stripWriter;
+        }
+        
+        /**
+         * Encodes the message into <code>bitfield</code>, and returns the
+         * areas written.
+         */
+        private static List<Rectangle> encodeBitfield(Bitfield2D bitfield, InputStream data, ErrorCorrectionLevel ecLevel, Namespace namespace) throws CodecException, IOException {
+            RStegCodec rStegCodec = new RStegCodec();
+            rStegCodec.setTargetBitfield(bitfield);
+            rStegCodec.setErrorCorrectionLevel(ecLevel);
+            rStegCodec.setParallelism(namespace.getInt("threads"));
+            rStegCodec.setCodewordLength(namespace.getInt("codeword_length"));
+            rStegCodec.setCompressing(namespace.getBoolean("deflate"));
+            rStegCodec.setSparse(namespace.getBoolean("sparse"));
+            if(namespace.getBoolean("per_patch_parity")) {
+                rStegCodec.setParityMode(ParityMode.PER_PATCH);
+            }
+            rStegCodec.encode(data);
+            return rStegCodec.getEncodedRegions();
         }
     }
     
@@ -157,45 +434,438 @@ public class RSteg {
         public void execute(Namespace namespace) {
             File imageFile = new File(namespace.getString("image"));
             
-            BufferedImage image = null;
             try {
-                image = ImageIO.read(imageFile);
-            } catch(IOException e) {
+                decodeImage(namespace, imageFile, System.out);
+            } catch(CodecException e) {
                 System.err.println(e);
                 System.exit(1);
+            } catch(IOException e) {
+                System.out.flush();
+                System.err.println(e.getCause() instanceof CodecException ? e.getCause() : e);
+                System.exit(1);
             }
             
-            int width = image.getWidth();
-            int height = image.getHeight();
+            if(!namespace.getBoolean("no_newline")) {
+                System.out.println();
+            }
+            
+            System.out.flush();
+        }
+        
+        /**
+         * Decodes the message hidden in the image to <code>outputStream
+         * </code>, and returns the number of pixels in the image.
+         */
+        static long decodeImage(Namespace namespace, File imageFile, OutputStream outputStream) throws CodecException, IOException {
+            Bitfield2D bitfield = readBitplane(imageFile);
             
-            BufferedImage intermediateImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-            Graphics2D intermediateGraphics = intermediateImage.createGraphics();
-            intermediateGraphics.drawImage(image, 0, 0, null);
-            intermediateGraphics.dispose();
-            Bitfield2D bitfield = new Bitfield2D(width, height);
-            BufferedImageUtils.getBitplane(intermediateImage, 1, 0, bitfield);
             RStegCodec rStegCodec = new RStegCodec();
             rStegCodec.setTargetBitfield(bitfield);
-            byte[] data = null;
-            try {
-                data = rStegCodec.decode();
-            } catch(CodecException e) {
-                System.err.println(e);
+            rStegCodec.setParallelism(namespace.getInt("threads"));
+            rStegCodec.setAlignmentCandidates(namespace.getInt("alignment_candidates"));
+            rStegCodec.setStreamId(namespace.getInt("stream"));
+            rStegCodec.setProgressiveDecoding(namespace.getBoolean("progressive"));
+            if(namespace.getBoolean("unverified") && rStegCodec.getAlignmentCandidates() == 1 && !rStegCodec.isProgressiveDecoding()) {
+                writeDecodedStream(rStegCodec, outputStream);
+            } else {
+                // Verified before any of it is written
+                outputStream.write(rStegCodec.decode());
+            }
+            return (long)bitfield.getWidth() * bitfield.getHeight();
+        }
+        
+        /**
+         * Writes the message out as it is decoded; a checksum mismatch is
+         * only reported once all of it has been written.
+         */
+        private static void writeDecodedStream(RStegCodec rStegCodec, OutputStream outputStream) throws CodecException, IOException {
+            try(RStegDecoderInputStream decoderInputStream = rStegCodec.decodeStream()) {
+                byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+                int length;
+                while((length = decoderInputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, length);
+                }
+            }
+        }
+    }
+    
+    private static class ProbeCommand implements Subcommand {
+        /**
+         * Probes every image, even if some of them cannot be read, and fails
+         * at the end if any could not.
+         */
+        @Override
+        public void execute(Namespace namespace) {
+            boolean failed = false;
+            for(Object image : namespace.getList("images")) {
+                String path = (String)image;
+                Bitfield2D bitfield;
+                try {
+                    bitfield = readBitplane(new File(path));
+                } catch(IOException e) {
+                    System.err.println(path + ": " + e);
+                    failed = true;
+                    continue;
+                }
+                RStegCodec rStegCodec = new RStegCodec();
+                rStegCodec.setTargetBitfield(bitfield);
+                ProbeResult probeResult = rStegCodec.probe();
+                ErrorCorrectionLevel ecLevel = probeResult.getErrorCorrectionLevel();
+                System.out.println(String.format(Locale.ROOT, "%s\t%s\t%.3f\t%s\t%s\t%s", path,
+                        probeResult.isLikely() ? "likely" : "unlikely", probeResult.getScore(),
+                        (ecLevel != null) ? probeResult.getVersion() : "-",
+                        (ecLevel != null) ? ecLevel.ordinal() : "-",
+                        (ecLevel != null) ? probeResult.getCodewordLength() : "-"));
+            }
+            System.out.flush();
+            if(failed) {
+                System.exit(1);
+            }
+        }
+    }
+    
+    /**
+     * Encodes or decodes many images in one run, a few at a time on a pool of
+     * worker threads. Every image is attempted even if some fail, and one
+     * tab-separated line is written per image, in the order they were named:
+     * the path, whether it succeeded, the length of the message, the time
+     * taken in milliseconds, and the output path or the error. A summary of
+     * the throughput follows on standard error.
+     */
+    private static class BatchCommand implements Subcommand {
+        private static final Set<String> IMAGE_EXTENSIONS = imageExtensions();
+        
+        private final boolean encoding;
+        
+        public BatchCommand(boolean encoding) {
+            this.encoding = encoding;
+        }
+        
+        @Override
+        public void execute(final Namespace namespace) {
+            List<BatchItem> items = new ArrayList<BatchItem>();
+            for(Object source : namespace.getList("sources")) {
+                try {
+                    addSource(items, (String)source);
+                } catch(IOException e) {
+                    items.add(new BatchItem((String)source, null, e));
+                }
+            }
+            if(items.isEmpty()) {
+                System.err.println("No images found.");
                 System.exit(1);
             }
             
-            try {
-                System.out.write(data);
-            } catch(IOException e) {
-                System.err.println(e);
+            File outputDir = new File(namespace.getString("output_dir"));
+            if(!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                System.err.println(String.format("Cannot create output directory \"%s\".", outputDir));
+                System.exit(1);
+            }
+            if(encoding && namespace.getBoolean("streaming") && namespace.getString("format").equals("gif")) {
+                System.err.println("Streaming output is only supported for png and bmp files.");
                 System.exit(1);
             }
             
-            if(!namespace.getBoolean("no_newline")) {
-                System.out.println();
+            byte[] sharedMessage = null;
+            if(encoding) {
+                try {
+                    sharedMessage = readSharedMessage(namespace, items);
+                } catch(IOException e) {
+                    System.err.println(e);
+                    System.exit(1);
+                }
+            }
+            
+            /*
+             * The output names are settled beforehand, so that two images
+             * with the same name fail rather than overwrite each other,
+             * whichever finishes first.
+             */
+            Set<String> outputNames = new HashSet<String>();
+            for(BatchItem item : items) {
+                if(item.error == null) {
+                    String outputName = outputName(item.imageFile.getName(), namespace);
+                    if(outputNames.add(outputName)) {
+                        item.outputFile = new File(outputDir, outputName);
+                    } else {
+                        item.error = new IOException(String.format("Output file \"%s\" is already used by another image.", outputName));
+                    }
+                }
+            }
+            
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(namespace.getInt("jobs"), items.size()));
+            long startTime = System.nanoTime();
+            List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>(items.size());
+            for(final BatchItem item : items) {
+                final byte[] message = sharedMessage;
+                futures.add(executor.submit(new Callable<BatchResult>() {
+                    @Override
+                    public BatchResult call() {
+                        return process(namespace, item, message);
+                    }
+                }));
             }
             
+            int failedCount = 0;
+            long pixelCount = 0;
+            long messageLength = 0;
+            try {
+                for(int i = 0; i < items.size(); i++) {
+                    BatchResult result;
+                    try {
+                        result = futures.get(i).get();
+                    } catch(ExecutionException e) {
+                        result = new BatchResult(-1, 0, 0, e.getCause());
+                    }
+                    BatchItem item = items.get(i);
+                    if(result.error == null) {
+                        pixelCount += result.pixelCount;
+                        messageLength += result.messageLength;
+                    } else {
+                        failedCount++;
+                    }
+                    System.out.println(String.format(Locale.ROOT, "%s\t%s\t%s\t%d\t%s", item.path,
+                            (result.error == null) ? "ok" : "failed",
+                            (result.error == null) ? result.messageLength : "-",
+                            result.time / 1000000,
+                            (result.error == null) ? item.outputFile.getPath() : describe(result.error)));
+                }
+            } catch(InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                System.exit(1);
+            }
+            executor.shutdown();
+            
             System.out.flush();
+            double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+            System.err.println(String.format(Locale.ROOT, "%d images, %d failed, %.3f s, %.2f images/s, %.2f megapixels/s, %.1f KiB/s of messages",
+                    items.size(), failedCount, seconds, items.size() / seconds, pixelCount / 1e6 / seconds, messageLength / 1024.0 / seconds));
+            if(failedCount > 0) {
+                System.exit(1);
+            }
+        }
+        
+        /**
+         * Encodes or decodes one image, and deletes any output left behind if
+         * that fails. Every exception is caught, so that the other images go
+         * on regardless.
+         */
+        private BatchResult process(Namespace namespace, BatchItem item, byte[] sharedMessage) {
+            long startTime = System.nanoTime();
+            if(item.error != null) {
+                return new BatchResult(0, 0, 0, item.error);
+            }
+            try {
+                long pixelCount;
+                long messageLength;
+                if(encoding) {
+                    byte[] message = (item.messageFile != null) ? Files.readAllBytes(item.messageFile.toPath()) : sharedMessage;
+                    pixelCount = EncodeCommand.encodeImage(namespace, item.imageFile, item.outputFile, new ByteArrayInputStream(message));
+                    messageLength = message.length;
+                } else {
+                    try(OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(item.outputFile))) {
+                        pixelCount = DecodeCommand.decodeImage(namespace, item.imageFile, outputStream);
+                    }
+                    messageLength = item.outputFile.length();
+                }
+                return new BatchResult(System.nanoTime() - startTime, pixelCount, messageLength, null);
+            } catch(CodecException | IOException | RuntimeException e) {
+                item.outputFile.delete();
+                return new BatchResult(System.nanoTime() - startTime, 0, 0, e);
+            }
+        }
+        
+        /**
+         * Returns the message for the images that do not name their own, read
+         * from the option or, only if some image needs it, standard input.
+         */
+        private static byte[] readSharedMessage(Namespace namespace, List<BatchItem> items) throws IOException {
+            String message = namespace.getString("message");
+            if(message != null) {
+                return message.getBytes();
+            }
+            for(BatchItem item : items) {
+                if(item.error == null && item.messageFile == null) {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    byte[] chunk = new byte[STREAM_BUFFER_SIZE];
+                    int length;
+                    while((length = System.in.read(chunk)) != -1) {
+                        buffer.write(chunk, 0, length);
+                    }
+                    return buffer.toByteArray();
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Adds the images named by <code>source</code>: the images in a
+         * directory or matching a glob, in order of name, an image itself,
+         * or the images listed in a manifest file.
+         */
+        private void addSource(List<BatchItem> items, String source) throws IOException {
+            File file = new File(source);
+            if(file.isDirectory()) {
+                addMatches(items, file.toPath(), "*");
+            } else if(file.isFile()) {
+                if(isImageFile(file.getName()) || isReadableImage(file)) {
+                    items.add(new BatchItem(source, null, null));
+                } else {
+                    addManifest(items, file);
+                }
+            } else if(source.indexOf('*') != -1 || source.indexOf('?') != -1 || source.indexOf('[') != -1 || source.indexOf('{') != -1) {
+                File parent = file.getParentFile();
+                addMatches(items, (parent != null) ? parent.toPath() : new File(".").toPath(), file.getName());
+            } else {
+                throw new FileNotFoundException(source);
+            }
+        }
+        
+        private static void addMatches(List<BatchItem> items, Path directory, String glob) throws IOException {
+            List<Path> matches = new ArrayList<Path>();
+            try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory, glob)) {
+                for(Path path : directoryStream) {
+                    if(Files.isRegularFile(path) && isImageFile(path.getFileName().toString())) {
+                        matches.add(path);
+                    }
+                }
+            }
+            Collections.sort(matches);
+            for(Path path : matches) {
+                items.add(new BatchItem(path.toString(), null, null));
+            }
+        }
+        
+        /**
+         * Adds the images listed in a manifest, one path per line, relative
+         * to the manifest unless absolute. Blank lines and lines starting
+         * with # are skipped. When encoding, a line may also give the path of
+         * a file holding the message for its image, after a tab.
+         */
+        private void addManifest(List<BatchItem> items, File manifestFile) throws IOException {
+            File baseDir = manifestFile.getAbsoluteFile().getParentFile();
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(manifestFile.toPath(), Charset.defaultCharset());
+            } catch(CharacterCodingException e) {
+                throw new IOException("Neither a readable image nor a manifest.", e);
+            }
+            for(String line : lines) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t", 2);
+                File imageFile = resolve(baseDir, fields[0].trim());
+                File messageFile = (encoding && fields.length > 1) ? resolve(baseDir, fields[1].trim()) : null;
+                items.add(new BatchItem(imageFile.getPath(), messageFile, null));
+            }
+        }
+        
+        private static File resolve(File baseDir, String path) {
+            File file = new File(path);
+            return file.isAbsolute() ? file : new File(baseDir, path);
+        }
+        
+        private String outputName(String imageName, Namespace namespace) {
+            if(encoding) {
+                int lastDotIndex = imageName.lastIndexOf('.');
+                String baseName = (lastDotIndex > 0) ? imageName.substring(0, lastDotIndex) : imageName;
+                return baseName + "." + namespace.getString("format");
+            } else {
+                return imageName + ".msg";
+            }
+        }
+        
+        /**
+         * Returns the lower case file extensions of the formats ImageIO can
+         * read.
+         */
+        private static Set<String> imageExtensions() {
+            Set<String> extensions = new HashSet<String>();
+            for(String suffix : ImageIO.getReaderFileSuffixes()) {
+                extensions.add(suffix.toLowerCase(Locale.ROOT));
+            }
+            return extensions;
+        }
+        
+        private static boolean isImageFile(String fileName) {
+            String extension = fileExtension(fileName);
+            return extension != null && IMAGE_EXTENSIONS.contains(extension.toLowerCase(Locale.ROOT));
+        }
+        
+        /**
+         * Returns true if ImageIO has a reader for the contents of <code>
+         * file</code>, whatever its name.
+         */
+        private static boolean isReadableImage(File file) throws IOException {
+            try(ImageInputStream imageInputStream = ImageIO.createImageInputStream(file)) {
+                return imageInputStream != null && ImageIO.getImageReaders(imageInputStream).hasNext();
+            }
+        }
+        
+        /**
+         * Describes an error on one line, the way the single image commands
+         * report it.
+         */
+        private static String describe(Throwable error) {
+            if(error instanceof IllegalArgumentException) {
+                return error.getMessage();
+            } else if(error instanceof IOException && error.getCause() instanceof CodecException) {
+                return error.getCause().toString();
+            } else {
+                return String.valueOf(error).replace('\n', ' ').replace('\t', ' ');
+            }
+        }
+    }
+    
+    private static class BatchItem {
+        final String path;
+        final File imageFile;
+        final File messageFile;// null for the shared message
+        File outputFile;
+        Throwable error;// set if the image cannot be attempted
+        
+        BatchItem(String path, File messageFile, Throwable error) {
+            this.path = path;
+            this.imageFile = new File(path);
+            this.messageFile = messageFile;
+            this.error = error;
+        }
+    }
+    
+    private static class BatchResult {
+        final long time;
+        final long pixelCount;
+        final long messageLength;
+        final Throwable error;// null on success
+        
+        BatchResult(long time, long pixelCount, long messageLength, Throwable error) {
+            this.time = time;
+            this.pixelCount = pixelCount;
+            this.messageLength = messageLength;
+            this.error = error;
+        }
+    }
+    
+    /**
+     * Extracts the bitplane carrying the message from an image file. Only one
+     * bit per pixel is needed, so most png images are read straight from their
+     * compressed rows, and everything else is read in strips rather than
+     * decoding all of it into memory at once.
+     */
+    private static Bitfield2D readBitplane(File imageFile) throws IOException {
+        try(InputStream inputStream = new BufferedInputStream(new FileInputStream(imageFile))) {
+            if(PngBitplaneReader.hasSignature(inputStream)) {
+                PngBitplaneReader pngReader = new PngBitplaneReader(inputStream);
+                if(pngReader.isSupported()) {
+                    return pngReader.readBitplane(BITPLANE_BAND, BITPLANE_BIT_INDEX);
+                }
+            }
+        }
+        try(ImageStripReader stripReader = new ImageStripReader(imageFile)) {
+            return stripReader.readBitplane(BITPLANE_BAND, BITPLANE_BIT_INDEX);
         }
     }
     
@@ -1,24 +1,50 @@
 package com.bitwiseops.rsteg;
 
-import java.io.DataInputStream;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 /**
  * Implements steganographic encoding and decoding for a single bitplane.
  */
 public class RStegCodec {
-    public static final int VERSION = 0;
+    /**
+     * The newest format version. Version 0 stores the patch index in a single
+     * tile; version 1 adds an extension tile holding its upper bits, at the
+     * cost of one data tile per patch. Version 2 splits the extension tile
+     * between the upper bits of the index and a code for the codeword
+     * length, which is 256 in the other versions. Version 3 takes four more
+     * bits of the index for a stream ID, so that several messages can share
+     * a bitfield, see <code>encodeStreams</code>.
+     */
+    public static final int VERSION = 3;
+    static final int COMPACT_INDEX_VERSION = 0;
+    static final int EXTENDED_INDEX_VERSION = 1;
+    static final int CODEWORD_LENGTH_VERSION = 2;
+    static final int MULTIPLEXED_VERSION = 3;
     private static final Field DATA_FIELD = new GFPow2(0x1069, 0xffb);// GF(4096), x^12+x^6+x^5+x^3+1
-    private static final CRC METADATA_CRC = new CRC(0x07, 8);
-    private static final CRC DATA_CRC = new CRC(0x04c11db7, 32);
+    private static final ConcurrentMap<Integer, ReedSolomon> SHARED_CODES = new ConcurrentHashMap<Integer, ReedSolomon>();
+    private static final int METADATA_CRC_POLY = 0x07;
+    private static final int METADATA_CRC_DEGREE = 8;
+    static final int DATA_CRC_POLY = 0x04c11db7;
+    static final int DATA_CRC_DEGREE = 32;
     static final int TILE_PAYLOAD_SIZE = 12;
     static final int TILE_PAYLOAD_MASK = (1 << TILE_PAYLOAD_SIZE) - 1;
     static final int TILE_WIDTH = 4;
@@ -26,25 +52,65 @@ public class RStegCodec {
     static final int PATCH_WIDTH_TILES = 4;
     static final int PATCH_SIZE_TILES = PATCH_WIDTH_TILES * PATCH_WIDTH_TILES;
     static final int PATCH_WIDTH_BITS = PATCH_WIDTH_TILES * TILE_WIDTH;
-    private static final int PARITY_RANDOM_SEED = 0;
+    static final int PARITY_RANDOM_SEED = 0;
     private static final int SCRAMBLE_RANDOM_SEED = 1;
-    private static final int SHUFFLE_RANDOM_SEED = 2;
+    private static final long PATCH_PERMUTATION_KEY = 2;
     private static final int[] SCRAMBLE_MASKS = new int[PATCH_SIZE_TILES];
     static final int PATCH_INDEX_TILE_X = 2;
     static final int PATCH_INDEX_TILE_Y = 3;
+    static final int PATCH_INDEX_EXTENSION_TILE_X = 1;
+    static final int PATCH_INDEX_EXTENSION_TILE_Y = 3;
     static final int METADATA_TILE_X = 3;
     static final int METADATA_TILE_Y = 3;
     static final int PATCH_INDEX_TILE_INDEX = posToLocalTileIndex(PATCH_INDEX_TILE_X, PATCH_INDEX_TILE_Y);
+    static final int PATCH_INDEX_EXTENSION_TILE_INDEX = posToLocalTileIndex(PATCH_INDEX_EXTENSION_TILE_X, PATCH_INDEX_EXTENSION_TILE_Y);
     static final int METADATA_TILE_INDEX = posToLocalTileIndex(METADATA_TILE_X, METADATA_TILE_Y);
-    static final int DATA_TILES_PER_PATCH = 14;
-    static final int CODEWORD_LENGTH = 256;
-    static final int ERASED_SYMBOL = -1;
+    static final int DATA_TILES_PER_PATCH = 14;// at most, in version 0
+    public static final int DEFAULT_CODEWORD_LENGTH = 256;
+    public static final int MAX_CODEWORD_LENGTH = 4096 - 1;// longest in DATA_FIELD
+    static final int CODEWORD_LENGTH_CODE_SHIFT = 8;// in the extension tile
+    static final int STREAM_ID_SHIFT = 4;// in the extension tile
+    public static final int MAX_STREAM_ID = (1 << (CODEWORD_LENGTH_CODE_SHIFT - STREAM_ID_SHIFT)) - 1;
+    static final int ERASED_SYMBOL = ReedSolomon.ERASED_SYMBOL;
     static final int INVALID_PATCH_INDEX = 4096 - 1;
+    static final int EXTENDED_INVALID_PATCH_INDEX = (1 << (2 * TILE_PAYLOAD_SIZE)) - 1;
+    static final int CODEWORD_LENGTH_INVALID_PATCH_INDEX = (1 << (TILE_PAYLOAD_SIZE + CODEWORD_LENGTH_CODE_SHIFT)) - 1;
+    static final int MULTIPLEXED_INVALID_PATCH_INDEX = (1 << (TILE_PAYLOAD_SIZE + STREAM_ID_SHIFT)) - 1;
     static final int DATA_MAX_LENGTH = 10000000;
+    static final int SHORTENED_TAIL_FLAG = 1 << 31;// in the length word
+    static final int COMPRESSED_FLAG = 1 << 30;// in the length word
+    static final int LENGTH_WORD_FLAGS = SHORTENED_TAIL_FLAG | COMPRESSED_FLAG;
+    static final int COMPRESSION_LEVEL = Deflater.BEST_COMPRESSION;
+    private static final int STREAM_BUFFER_SIZE = 4096;
+    private static final int METADATA_VOTE_BITS = 8;// version, EC level and codeword length code
+    private static final int PROGRESS_CHECK_INTERVAL = 256;// patches
+    static final int MIN_METADATA_VOTE_MARGIN = 8;
+    private static final int MAX_CROP_FACTOR = 4;// 1 / the lowest data rate
+    static final int PROBE_SAMPLE_PATCHES = 1024;
+    private static final int ALIGNMENT_SAMPLE_TILES = 1 << 16;
+    private static final int ALIGNMENT_MIN_MARGIN_SIGMAS = 4;
     
     private ErrorCorrectionLevel ecLevel;
+    private int codewordLength = DEFAULT_CODEWORD_LENGTH;
+    private ReedSolomon rsCode;// for the last level and length asked for
     public final PatchMetadata patchMetadata = new PatchMetadata();
     private Bitfield2D targetBitfield;
+    private int metadataVoteCount;
+    private int metadataVoteMargin;
+    private boolean progressiveDecoding;
+    private int alignmentCandidates = 1;
+    private int streamId;
+    private boolean multiplexed;// encodes a stream of encodeStreams
+    private int patchIndexOffset;// patches of the streams encoded before
+    private int storedLength = -1;// of the message being encoded, unless streamed
+    private boolean compressing;
+    private boolean sparse;
+    private ParityMode parityMode = ParityMode.SEQUENTIAL;
+    private int parallelism = 1;
+    private int[] decodedFirstPacket;// by the last progressive scan
+    private int decodedGroupSize;// by the last decode
+    private EncodedMessage encodedMessage;// by encodeForUpdate or update
+    private List<Rectangle> encodedRegions;// by the last encode
     
     public Bitfield2D getTargetBitfield() {
         return targetBitfield;
@@ -62,102 +128,984 @@ public class RStegCodec {
         this.ecLevel = ecLevel;
     }
     
+    public int getCodewordLength() {
+        return codewordLength;
+    }
+    
+    /**
+     * Sets the number of symbols per Reed-Solomon codeword, which must be a
+     * multiple of 256 up to 3840, or <code>MAX_CODEWORD_LENGTH</code>. Each
+     * group of patches holds as many patches as a codeword has symbols, so
+     * longer codewords spread each codeword over more of the image, which
+     * makes them more tolerant of localized damage, and need less padding
+     * per packet. Lengths other than <code>DEFAULT_CODEWORD_LENGTH</code>
+     * are encoded in format version 2. Decoding sets the length read from
+     * the image.
+     */
+    public void setCodewordLength(int codewordLength) {
+        if(codewordLengthCode(codewordLength) < 0) {
+            throw new IllegalArgumentException("codewordLength must be a multiple of 256 up to 3840, or 4095.");
+        }
+        this.codewordLength = codewordLength;
+    }
+    
+    public ParityMode getParityMode() {
+        return parityMode;
+    }
+    
+    /**
+     * Sets how the parity bit of each tile is chosen when encoding. Both
+     * modes decode the same way; see <code>ParityMode</code>.
+     */
+    public void setParityMode(ParityMode parityMode) {
+        this.parityMode = parityMode;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * Sets the number of threads used to encode and decode. Codewords are
+     * always computed in parallel; patches are only packed in parallel in the
+     * <code>PER_PATCH</code> parity mode. When decoding, the patches are
+     * scanned in parallel. The results do not depend on the number of
+     * threads.
+     */
+    public void setParallelism(int parallelism) {
+        if(parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be positive.");
+        }
+        this.parallelism = parallelism;
+    }
+    
+    public boolean isProgressiveDecoding() {
+        return progressiveDecoding;
+    }
+    
+    /**
+     * Sets whether decoding stops reading patches as soon as every codeword
+     * of the message has been received with enough symbols to be corrected
+     * with a safety margin, rather than reading the whole bitfield. This
+     * makes decoding a short message from a large image much faster. On a
+     * damaged bitfield those symbols may still hold too many errors, so a
+     * codeword that cannot be corrected, or a message that does not verify,
+     * makes the decoder read the rest of the patches and try again before
+     * failing. A stream from <code>decodeStream</code> can only do so for a
+     * codeword it cannot correct, since the data of one corrected to the
+     * wrong symbols has been read by the time the checksum finds out. The
+     * default is <code>false</code>.
+     */
+    public void setProgressiveDecoding(boolean progressiveDecoding) {
+        this.progressiveDecoding = progressiveDecoding;
+    }
+    
+    public int getAlignmentCandidates() {
+        return alignmentCandidates;
+    }
+    
+    /**
+     * Sets how many alignments of the patches <code>decode()</code> may try.
+     * The alignment is estimated from the parity of the tiles and the
+     * alignment words; on a heavily edited image the runners-up may be
+     * within sampling noise of the best guess, which is then no more likely
+     * to be right. Up to <code>alignmentCandidates</code> such alignments
+     * are then decoded concurrently, each on its own copy of the codec, and
+     * the first message whose checksum verifies is returned, cancelling the
+     * other decodes. An alignment that stands out is decoded alone, as when
+     * only one candidate is allowed. <code>decodeStream()</code> always
+     * commits to the best guess, since a stream is only verified at its
+     * end. The default is 1.
+     */
+    public void setAlignmentCandidates(int alignmentCandidates) {
+        if(alignmentCandidates <= 0) {
+            throw new IllegalArgumentException("alignmentCandidates must be positive.");
+        }
+        this.alignmentCandidates = alignmentCandidates;
+    }
+    
+    public int getStreamId() {
+        return streamId;
+    }
+    
+    /**
+     * Sets the stream that <code>decode()</code> and <code>decodeStream()
+     * </code> read from a bitfield written by <code>encodeStreams</code>.
+     * Only the patches tagged with the stream are read beyond their index
+     * tiles, and only its codewords are corrected. The message of a bitfield
+     * that is not multiplexed is stream 0, which is the default.
+     */
+    public void setStreamId(int streamId) {
+        if(streamId < 0 || streamId > MAX_STREAM_ID) {
+            throw new IllegalArgumentException("streamId must be from 0 to " + MAX_STREAM_ID + ".");
+        }
+        this.streamId = streamId;
+    }
+    
+    public boolean isCompressing() {
+        return compressing;
+    }
+    
+    /**
+     * Sets whether the message is compressed with Deflate before it is
+     * encoded, which is recorded in its length word. Text and other
+     * redundant messages then take up far fewer patches, and fewer
+     * codewords need to be encoded and corrected. Decoding inflates a
+     * compressed message transparently. The message may not be longer than
+     * <code>DATA_MAX_LENGTH</code> bytes before compression either, and
+     * decoding stops inflating past that length. The default is <code>false
+     * </code>.
+     */
+    public void setCompressing(boolean compressing) {
+        this.compressing = compressing;
+    }
+    
+    public boolean isSparse() {
+        return sparse;
+    }
+    
+    /**
+     * Sets whether encoding writes only the patches that hold the message,
+     * leaving the rest of the target bitfield untouched, instead of filling
+     * it with unused patches. Only the areas returned by <code>
+     * getEncodedRegions</code> then need to be stored into the image, and
+     * the rest of the cover keeps its own bits, which the decoder reads as
+     * invalid patches. A short message in a large image is encoded much
+     * faster, though its patches must stand out from the cover for the
+     * decoder to find their alignment. A cover that already holds a message
+     * must not be encoded sparsely, as the patches of both would mix. The
+     * default is <code>false</code>.
+     */
+    public void setSparse(boolean sparse) {
+        this.sparse = sparse;
+    }
+    
+    /**
+     * Returns the areas of the target bitfield written by the last encode, in
+     * bits: the slots of the patches holding the message in sparse mode, or
+     * else the whole bitfield.
+     */
+    public List<Rectangle> getEncodedRegions() {
+        return encodedRegions;
+    }
+    
+    /**
+     * Returns the number of valid patches whose metadata took part in the
+     * vote on the version and error correction level during the last decode.
+     */
+    public int getMetadataVoteCount() {
+        return metadataVoteCount;
+    }
+    
+    /**
+     * Returns by how many votes the winning metadata beat the runner-up
+     * during the last decode. A margin that is small compared to the vote
+     * count suggests that the image does not hold a message.
+     */
+    public int getMetadataVoteMargin() {
+        return metadataVoteMargin;
+    }
+    
+    /**
+     * Encodes everything that can be read from <code>inputStream</code>. The
+     * message is not buffered as a whole; see <code>RStegEncoderOutputStream
+     * </code>. The format version depends on the length of the message, so
+     * in a bitfield with more patch slots than the compact patch index
+     * addresses, a message short enough for that format is read whole first
+     * and encoded like <code>encode(byte[], int, int)</code> would.
+     */
+    public void encode(InputStream inputStream) throws CodecException, IOException {
+        byte[] head = new byte[0];
+        int headLength = 0;
+        if(codewordLength == DEFAULT_CODEWORD_LENGTH && getPatchCount() > INVALID_PATCH_INDEX) {
+            head = new byte[maxPayloadLength(INVALID_PATCH_INDEX, DATA_TILES_PER_PATCH, getMessageSymbolCount(), codewordLength) + 1];
+            int length;
+            while(headLength < head.length && (length = inputStream.read(head, headLength, head.length - headLength)) != -1) {
+                headLength += length;
+            }
+            if(headLength < head.length) {
+                encode(head, 0, headLength);
+                return;
+            }
+        }
+        
+        encodedMessage = null;
+        storedLength = -1;
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        try(RStegEncoderOutputStream encoderOutputStream = new RStegEncoderOutputStream(this)) {
+            encoderOutputStream.write(head, 0, headLength);
+            int length;
+            while((length = inputStream.read(buffer)) != -1) {
+                encoderOutputStream.write(buffer, 0, length);
+            }
+        } catch(IOException e) {
+            if(e.getCause() instanceof CodecException) {
+                throw (CodecException)e.getCause();
+            }
+            throw e;
+        }
+    }
+    
     public void encode(byte[] data, int offset, int length) throws CodecException {
-        int packetLength = ecLevel.messageSymbolCount;
-        DATA_CRC.reset();
-        DATA_CRC.updateWithInt(length);
-        int checksum = DATA_CRC.update(data, offset, length);
-        List<int[]> packets;
+        encodedMessage = null;
+        MessagePackets packets = messagePackets(data, offset, length);
+        encodeCodewords(encodePacketCodewords(packets.symbols, 0, packets.packetLayout));
+    }
+    
+    /**
+     * Encodes like <code>encode(byte[], int, int)</code>, and keeps the
+     * packets of the message, so that a later <code>update</code> can
+     * rewrite only the codewords that change. They take about as much memory
+     * as the message.
+     */
+    public void encodeForUpdate(byte[] data, int offset, int length) throws CodecException {
+        encodedMessage = null;
+        MessagePackets packets = messagePackets(data, offset, length);
+        int neededPatchCount = encodeCodewords(encodePacketCodewords(packets.symbols, 0, packets.packetLayout));
+        encodedMessage = new EncodedMessage(packets, neededPatchCount);
+    }
+    
+    /**
+     * Encodes several independent messages into the target bitfield in
+     * format version 3, each tagged with its stream ID and encoded with its
+     * own error correction level, codeword length and checksum. The patches
+     * of each stream follow those of the one before in the pseudorandom
+     * order of the patch slots, so every stream is spread over the whole
+     * bitfield, and a stream can have up to <code>
+     * MULTIPLEXED_INVALID_PATCH_INDEX</code> patches. The settings of this
+     * codec other than the level and length apply to every stream, and
+     * unused patches follow the last one unless encoding sparsely.
+     * <p>
+     * A reader selects a stream with <code>setStreamId</code>.
+     */
+    public void encodeStreams(List<StreamPayload> payloads) throws CodecException {
+        if(payloads.isEmpty()) {
+            throw new IllegalArgumentException("payloads must not be empty.");
+        }
+        boolean[] streamIdsUsed = new boolean[MAX_STREAM_ID + 1];
+        for(StreamPayload payload : payloads) {
+            if(streamIdsUsed[payload.getStreamId()]) {
+                throw new IllegalArgumentException("Stream IDs must be unique.");
+            }
+            streamIdsUsed[payload.getStreamId()] = true;
+        }
+        
+        encodedMessage = null;
+        List<Rectangle> regions = new ArrayList<Rectangle>();
+        int patchIndexOffset = 0;
+        for(int i = 0; i < payloads.size(); i++) {
+            StreamPayload payload = payloads.get(i);
+            RStegCodec streamCodec = new RStegCodec();
+            streamCodec.setTargetBitfield(targetBitfield);
+            streamCodec.setErrorCorrectionLevel(payload.getErrorCorrectionLevel());
+            streamCodec.setCodewordLength(payload.getCodewordLength());
+            streamCodec.setParityMode(parityMode);
+            streamCodec.setParallelism(parallelism);
+            streamCodec.setCompressing(compressing);
+            // The last stream packs the unused patches after it
+            streamCodec.setSparse(sparse || i < payloads.size() - 1);
+            streamCodec.setStreamId(payload.getStreamId());
+            streamCodec.multiplexed = true;
+            streamCodec.patchIndexOffset = patchIndexOffset;
+            byte[] data = payload.getData();
+            MessagePackets packets = streamCodec.messagePackets(data, 0, data.length);
+            patchIndexOffset += streamCodec.encodeCodewords(streamCodec.encodePacketCodewords(packets.symbols, 0, packets.packetLayout));
+            if(streamCodec.isSparse()) {
+                regions.addAll(streamCodec.encodedRegions);
+            } else {
+                regions = streamCodec.encodedRegions;
+            }
+        }
+        encodedRegions = regions;
+    }
+    
+    /**
+     * Encodes a new message in place of the one last encoded by <code>
+     * encodeForUpdate</code> or <code>update</code>, rewriting only
+     * the tiles that hold symbols of codewords whose packets changed. Each
+     * codeword has one tile in every patch of its group, so changing a few
+     * bytes of the message takes time proportional to the codeword length
+     * rather than to the size of the bitfield. The bitfield then decodes
+     * exactly like one encoded from scratch, and in the <code>PER_PATCH
+     * </code> parity mode it is identical to one.
+     * <p>
+     * The packets can only be compared if they are laid out the same way,
+     * which needs a message of the same length, or of the same compressed
+     * length, and the same target bitfield, error correction level and
+     * codeword length. Otherwise the whole bitfield is encoded again. In
+     * sparse mode, the patches of the old message that the new one does not
+     * need are then packed as unused, so that neither decoding nor <code>
+     * probe</code> finds them.
+     * <p>
+     * Returns the areas of the bitfield that were rewritten, in bits, which
+     * can be passed to <code>BufferedImageUtils.putBitplane</code> to store
+     * only those pixels.
+     */
+    public List<Rectangle> update(byte[] data, int offset, int length) throws CodecException {
+        MessagePackets packets = messagePackets(data, offset, length);
+        if(encodedMessage == null || !encodedMessage.hasLayoutOf(packets)) {
+            EncodedMessage oldMessage = encodedMessage;
+            int neededPatchCount = encodeCodewords(encodePacketCodewords(packets.symbols, 0, packets.packetLayout));
+            if(sparse && oldMessage != null && oldMessage.bitfield == targetBitfield && oldMessage.patchCount > neededPatchCount) {
+                encodedRegions = new ArrayList<Rectangle>(encodedRegions);
+                encodedRegions.addAll(blankPatches(neededPatchCount, oldMessage.patchCount));
+            }
+            encodedMessage = new EncodedMessage(packets, neededPatchCount);
+            return encodedRegions;
+        }
+        
+        int[] changedIndices = new int[packets.packetLayout.getPacketCount()];
+        int changedCount = 0;
+        for(int i = 0; i < changedIndices.length; i++) {
+            if(!packets.packetEquals(i, encodedMessage.packets)) {
+                changedIndices[changedCount++] = i;
+            }
+        }
+        changedIndices = Arrays.copyOf(changedIndices, changedCount);
+        List<int[]> changedCodewords = encodePacketCodewords(packets.symbols, 0, packets.packetLayout, changedIndices);
+        
+        /*
+         * The parity choices of the sequential mode depend on every tile
+         * packed before, so rewritten tiles take the choices of the per-patch
+         * mode. The choice does not affect decoding.
+         */
+        ParitySource paritySource = new ParitySource(null);
+        PatchPermutation patchPermutation = newPatchPermutation();
+        int dataTileCount = getDataTilesPerPatch();
+        int widthPatches = targetBitfield.getWidth() / PATCH_WIDTH_BITS;
+        List<Rectangle> regions = new ArrayList<Rectangle>();
+        for(int i = 0; i < changedIndices.length; i++) {
+            int codewordIndex = changedIndices[i];
+            int[] codeword = changedCodewords.get(i);
+            int firstPatchIndex = codewordIndex / dataTileCount * codewordLength;
+            int tileIndex = codewordIndex % dataTileCount;
+            int xTile = tileIndex % PATCH_WIDTH_TILES;
+            int yTile = tileIndex / PATCH_WIDTH_TILES;
+            for(int symbolIndex = 0; symbolIndex < codeword.length; symbolIndex++) {
+                int patchIndex = firstPatchIndex + symbolIndex;
+                int patchIndexInBitfield = patchSlot(patchPermutation, patchIndex);
+                int x = patchIndexInBitfield % widthPatches * PATCH_WIDTH_BITS + xTile * TILE_WIDTH;
+                int y = patchIndexInBitfield / widthPatches * PATCH_WIDTH_BITS + yTile * TILE_WIDTH;
+                packTile(x, y, xTile, yTile, codeword[symbolIndex], paritySource.nextFlipIndex(patchIndex, tileIndex));
+                regions.add(new Rectangle(x, y, TILE_WIDTH, TILE_WIDTH));
+            }
+        }
+        encodedMessage = new EncodedMessage(packets, encodedMessage.patchCount);
+        return regions;
+    }
+    
+    /**
+     * Packs the patches numbered from <code>startIndex</code> up to <code>
+     * endIndex</code> as unused, with the parity choices of the per-patch
+     * mode like the tiles rewritten by <code>update</code>, and returns their
+     * areas.
+     */
+    private List<Rectangle> blankPatches(int startIndex, int endIndex) {
+        ParitySource paritySource = new ParitySource(null);
+        PatchPermutation patchPermutation = newPatchPermutation();
+        int widthPatches = targetBitfield.getWidth() / PATCH_WIDTH_BITS;
+        List<int[]> noCodewords = new ArrayList<int[]>();
+        List<Rectangle> regions = new ArrayList<Rectangle>(endIndex - startIndex);
+        for(int patchIndex = startIndex; patchIndex < endIndex; patchIndex++) {
+            int patchIndexInBitfield = patchSlot(patchPermutation, patchIndex);
+            packPatch(patchIndexInBitfield, patchIndex, false, noCodewords, paritySource);
+            int x = patchIndexInBitfield % widthPatches * PATCH_WIDTH_BITS;
+            int y = patchIndexInBitfield / widthPatches * PATCH_WIDTH_BITS;
+            regions.add(new Rectangle(x, y, PATCH_WIDTH_BITS, PATCH_WIDTH_BITS));
+        }
+        return regions;
+    }
+    
+    /**
+     * Returns the packets of the augmented message: the length word, the
+     * message, compressed if the codec is compressing, and the checksum.
+     */
+    private MessagePackets messagePackets(byte[] data, int offset, int length) throws CodecException {
+        if(length > DATA_MAX_LENGTH) {
+            throw new CodecException("Too much data to encode.");
+        }
+        int lengthWord = length | SHORTENED_TAIL_FLAG;
+        if(compressing) {
+            data = deflate(data, offset, length);
+            offset = 0;
+            length = data.length;
+            lengthWord = length | SHORTENED_TAIL_FLAG | COMPRESSED_FLAG;
+        }
+        // The format version depends on the length
+        storedLength = length;
+        int packetLength = getMessageSymbolCount();
+        CRC dataCRC = new CRC(DATA_CRC_POLY, DATA_CRC_DEGREE);
+        dataCRC.updateWithInt(lengthWord);
+        int checksum = dataCRC.update(data, offset, length);
         try(
-                RStegPacketOutputStream packetOutputStream = new RStegPacketOutputStream(packetLength);
+                RStegPacketOutputStream packetOutputStream = new RStegPacketOutputStream(packetLength, length + 8);
                 DataOutputStream dataOutputStream = new DataOutputStream(packetOutputStream);
         ) {
-            dataOutputStream.writeInt(length);
+            dataOutputStream.writeInt(lengthWord);
             dataOutputStream.write(data, offset, length);
             dataOutputStream.writeInt(checksum);
-            packets = packetOutputStream.getPackets();
+            return new MessagePackets(packetOutputStream.getSymbols(), new PacketLayout(packetLength, getDataTilesPerPatch(), length + 8, true));
         } catch(IOException e) {
             throw new CodecException("Encoding failed.", e);
         }
-        
-        encodePackets(packets);
     }
     
-    private void encodePackets(List<int[]> packets) throws CodecException {
-        int messageSymbolCount = ecLevel.messageSymbolCount;
-        int checkSymbolCount = CODEWORD_LENGTH - messageSymbolCount;
-        ReedSolomon rsCode = new ReedSolomon(DATA_FIELD, messageSymbolCount, checkSymbolCount);
-        List<int[]> codewords = new ArrayList<int[]>();
-        for(int[] packet : packets) {
-            codewords.add(rsCode.encode(packet, 0, packet.length));
+    private static byte[] deflate(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            while(!deflater.finished()) {
+                byteArrayOutputStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return byteArrayOutputStream.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+    
+    /**
+     * Returns the Reed-Solomon codewords of the packets laid out by <code>
+     * packetLayout</code> in <code>symbols</code> from <code>offset</code> on,
+     * computed on up to <code>parallelism</code> threads.
+     */
+    List<int[]> encodePacketCodewords(int[] symbols, int offset, PacketLayout packetLayout) throws CodecException {
+        return encodePacketCodewords(symbols, offset, packetLayout, null);
+    }
+    
+    /**
+     * Returns the codewords of the packets numbered in <code>packetIndices
+     * </code>, or of all packets if it is null. Each packet is encoded where
+     * it is stored.
+     */
+    private List<int[]> encodePacketCodewords(final int[] symbols, final int offset, final PacketLayout packetLayout, final int[] packetIndices) throws CodecException {
+        final ReedSolomon rsCode = getReedSolomon();
+        int codewordCount = (packetIndices != null) ? packetIndices.length : packetLayout.getPacketCount();
+        final int[][] codewords = new int[codewordCount][];
+        int taskCount = Math.min(parallelism, codewordCount);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(taskCount);
+        for(int taskIndex = 0; taskIndex < taskCount; taskIndex++) {
+            final int start = codewordCount * taskIndex / taskCount;
+            final int end = codewordCount * (taskIndex + 1) / taskCount;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for(int i = start; i < end; i++) {
+                        int packetIndex = (packetIndices != null) ? packetIndices[i] : i;
+                        codewords[i] = rsCode.encode(symbols, offset + packetLayout.getPacketOffset(packetIndex), packetLayout.getPacketLength(packetIndex));
+                    }
+                    return null;
+                }
+            });
         }
-        encodeCodewords(codewords);
+        runTasks(tasks);
+        return Arrays.asList(codewords);
     }
     
-    private void encodeCodewords(List<int[]> codewords) throws CodecException {
-        Random shuffleRandom = new Random(SHUFFLE_RANDOM_SEED);
-        Random parityRandom = new Random(PARITY_RANDOM_SEED);
+    /**
+     * Packs <code>codewords</code> into the target bitfield, and returns the
+     * number of patches they take up.
+     */
+    private int encodeCodewords(final List<int[]> codewords) throws CodecException {
+        int patchCount = getPatchCount();
+        final int neededPatchCount = neededPatchCount(codewords.size(), codewords.get(codewords.size() - 1).length);
+        checkCapacity(neededPatchCount);
+        final PatchPermutation patchPermutation = newPatchPermutation();
         
-        PatchMetadata patchMetadata = new PatchMetadata();
-        patchMetadata.version = VERSION;
-        patchMetadata.ecLevelId = ecLevel.ordinal();
+        encodedRegions = encodedRegions(neededPatchCount, patchPermutation);
+        
+        if(parityMode == ParityMode.SEQUENTIAL || parallelism == 1) {
+            ParitySource paritySource = newParitySource();
+            int packedPatchCount = sparse ? neededPatchCount : patchCount - patchIndexOffset;
+            for(int patchIndex = 0; patchIndex < packedPatchCount; patchIndex++) {
+                packPatch(patchSlot(patchPermutation, patchIndex), patchIndex, patchIndex < neededPatchCount, groupCodewords(codewords, patchIndex), paritySource);
+            }
+            return neededPatchCount;
+        }
         
+        /*
+         * Each thread packs the slots of a band of patch rows. The bands
+         * share no rows of the bitfield, and hence no elements of its data.
+         */
+        final int widthPatches = targetBitfield.getWidth() / PATCH_WIDTH_BITS;
+        int heightPatches = targetBitfield.getHeight() / PATCH_WIDTH_BITS;
+        int taskCount = Math.min(parallelism, heightPatches);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(taskCount);
+        for(int taskIndex = 0; taskIndex < taskCount; taskIndex++) {
+            final int startRow = heightPatches * taskIndex / taskCount;
+            final int endRow = heightPatches * (taskIndex + 1) / taskCount;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ParitySource paritySource = newParitySource();
+                    for(int slot = startRow * widthPatches; slot < endRow * widthPatches; slot++) {
+                        int patchIndex = patchPermutation.inverse(slot) - patchIndexOffset;
+                        if(patchIndex >= 0 && (patchIndex < neededPatchCount || !sparse)) {
+                            packPatch(slot, patchIndex, patchIndex < neededPatchCount, groupCodewords(codewords, patchIndex), paritySource);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        runTasks(tasks);
+        return neededPatchCount;
+    }
+    
+    /**
+     * Packs the patches from number <code>neededPatchCount</code> on as
+     * unused, unless encoding sparsely, and records the areas written by an
+     * encode that needs <code>neededPatchCount</code> patches.
+     */
+    void packUnusedPatches(int neededPatchCount, PatchPermutation patchPermutation, ParitySource paritySource) {
+        encodedRegions = encodedRegions(neededPatchCount, patchPermutation);
+        if(sparse) {
+            return;
+        }
+        List<int[]> noCodewords = new ArrayList<int[]>();
+        for(int patchIndex = neededPatchCount; patchIndex < patchPermutation.getSize() - patchIndexOffset; patchIndex++) {
+            packPatch(patchSlot(patchPermutation, patchIndex), patchIndex, false, noCodewords, paritySource);
+        }
+    }
+    
+    /**
+     * Returns the areas written by an encode that needs <code>
+     * neededPatchCount</code> patches.
+     */
+    private List<Rectangle> encodedRegions(int neededPatchCount, PatchPermutation patchPermutation) {
+        if(!sparse) {
+            return Collections.singletonList(new Rectangle(0, 0, targetBitfield.getWidth(), targetBitfield.getHeight()));
+        }
+        int widthPatches = targetBitfield.getWidth() / PATCH_WIDTH_BITS;
+        List<Rectangle> regions = new ArrayList<Rectangle>(neededPatchCount);
+        for(int patchIndex = 0; patchIndex < neededPatchCount; patchIndex++) {
+            int patchIndexInBitfield = patchSlot(patchPermutation, patchIndex);
+            int x = patchIndexInBitfield % widthPatches * PATCH_WIDTH_BITS;
+            int y = patchIndexInBitfield / widthPatches * PATCH_WIDTH_BITS;
+            regions.add(new Rectangle(x, y, PATCH_WIDTH_BITS, PATCH_WIDTH_BITS));
+        }
+        return regions;
+    }
+    
+    /**
+     * Returns the codewords of the group that patch number <code>patchIndex
+     * </code> belongs to.
+     */
+    private List<int[]> groupCodewords(List<int[]> codewords, int patchIndex) {
+        int dataTileCount = getDataTilesPerPatch();
+        int codewordStartIndex = Math.min(patchIndex / codewordLength * dataTileCount, codewords.size());
+        int codewordEndIndex = Math.min(codewordStartIndex + dataTileCount, codewords.size());
+        return codewords.subList(codewordStartIndex, codewordEndIndex);
+    }
+    
+    /**
+     * Runs <code>tasks</code>, on separate threads if there is more than one,
+     * and waits for all of them to finish.
+     */
+    private static void runTasks(List<Callable<Void>> tasks) throws CodecException {
+        ExecutorService executor = (tasks.size() > 1) ? Executors.newFixedThreadPool(tasks.size()) : null;
+        try {
+            runTasks(executor, tasks, "Encoding failed.");
+        } finally {
+            if(executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+    
+    /**
+     * Runs <code>tasks</code> on <code>executor</code>, or on the calling
+     * thread if it is null, and waits for all of them to finish. A failure
+     * is reported as a <code>CodecException</code> with <code>
+     * failureMessage</code>.
+     */
+    private static void runTasks(ExecutorService executor, List<Callable<Void>> tasks, String failureMessage) throws CodecException {
+        if(executor == null) {
+            for(Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch(Exception e) {
+                    throw new CodecException(failureMessage, e);
+                }
+            }
+            return;
+        }
+        try {
+            for(Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodecException(failureMessage, e);
+        } catch(ExecutionException e) {
+            throw new CodecException(failureMessage, e.getCause());
+        }
+    }
+    
+    /**
+     * Returns a source of parity bit choices for the current parity mode.
+     * Sources for the <code>SEQUENTIAL</code> mode must be used by one thread,
+     * in patch order.
+     */
+    ParitySource newParitySource() {
+        return new ParitySource(parityMode == ParityMode.SEQUENTIAL ? new Random(PARITY_RANDOM_SEED) : null);
+    }
+    
+    /**
+     * Returns the number of whole patches that fit in the target bitfield.
+     */
+    int getPatchCount() {
         int widthPatches = targetBitfield.getWidth() / PATCH_WIDTH_BITS;
         int heightPatches = targetBitfield.getHeight() / PATCH_WIDTH_BITS;
-        int patchCount = widthPatches * heightPatches;
-        int dataTileSlots = widthPatches * heightPatches * DATA_TILES_PER_PATCH;
-        if(codewords.size() * CODEWORD_LENGTH > dataTileSlots) {
+        return widthPatches * heightPatches;
+    }
+    
+    /**
+     * Returns the format version to encode the message with: the codeword
+     * length format if the codewords do not have the default length, the
+     * extended patch index format if the message needs more patches than the
+     * compact one can address, and the compact one otherwise. The length of
+     * a streamed message is not known in advance, so it is assumed to need
+     * every patch slot in the target bitfield.
+     */
+    int getFormatVersion() {
+        if(multiplexed) {
+            return MULTIPLEXED_VERSION;
+        }
+        if(storedLength < 0) {
+            return formatVersion(codewordLength, getPatchCount());
+        }
+        return payloadFormatVersion(codewordLength, getMessageSymbolCount(), storedLength);
+    }
+    
+    /**
+     * Returns the format version for a payload of <code>payloadLength</code>
+     * bytes in packets of <code>packetLength</code> symbols.
+     */
+    private static int payloadFormatVersion(int codewordLength, int packetLength, int payloadLength) {
+        return formatVersion(codewordLength, payloadPatchCount(payloadLength, packetLength, DATA_TILES_PER_PATCH, codewordLength));
+    }
+    
+    /**
+     * Returns the format version whose patch indices can address <code>
+     * patchCount</code> patches.
+     */
+    private static int formatVersion(int codewordLength, int patchCount) {
+        if(codewordLength != DEFAULT_CODEWORD_LENGTH) {
+            return CODEWORD_LENGTH_VERSION;
+        }
+        return (patchCount > INVALID_PATCH_INDEX) ? EXTENDED_INDEX_VERSION : COMPACT_INDEX_VERSION;
+    }
+    
+    /**
+     * Returns the number of data tiles per patch, which is also the number of
+     * codewords per group, in the format used for the target bitfield.
+     */
+    int getDataTilesPerPatch() {
+        return dataTilesPerPatch(getFormatVersion());
+    }
+    
+    private static int dataTilesPerPatch(int version) {
+        return (version == COMPACT_INDEX_VERSION) ? DATA_TILES_PER_PATCH : DATA_TILES_PER_PATCH - 1;
+    }
+    
+    /**
+     * Returns the number of message symbols per codeword for the current
+     * error correction level and codeword length.
+     */
+    int getMessageSymbolCount() {
+        return ecLevel.getMessageSymbolCount(codewordLength);
+    }
+    
+    /**
+     * Returns the number of patches needed to hold <code>codewordCount</code>
+     * codewords. Each group of <code>getCodewordLength()</code> patches holds
+     * <code>getDataTilesPerPatch()</code> codewords, except the last group,
+     * which only has as many patches as its codewords, of <code>
+     * lastCodewordLength</code> symbols, need.
+     */
+    int neededPatchCount(int codewordCount, int lastCodewordLength) {
+        return neededPatchCount(codewordCount, lastCodewordLength, getDataTilesPerPatch(), codewordLength);
+    }
+    
+    private static int neededPatchCount(int codewordCount, int lastCodewordLength, int groupSize, int codewordLength) {
+        return (MathUtils.ceilDivide(codewordCount, groupSize) - 1) * codewordLength + lastCodewordLength;
+    }
+    
+    /**
+     * Returns the number of patches needed to hold a payload of <code>
+     * payloadLength</code> bytes in groups of <code>groupSize</code> packets
+     * of <code>packetLength</code> symbols.
+     */
+    private static int payloadPatchCount(int payloadLength, int packetLength, int groupSize, int codewordLength) {
+        PacketLayout packetLayout = new PacketLayout(packetLength, groupSize, Math.min(payloadLength, DATA_MAX_LENGTH + 1) + 8, true);
+        int lastCodewordLength = packetLayout.getPacketLength(packetLayout.getTailStartIndex()) + codewordLength - packetLength;
+        return neededPatchCount(packetLayout.getPacketCount(), lastCodewordLength, groupSize, codewordLength);
+    }
+    
+    /**
+     * Fails if <code>neededPatchCount</code> patches do not fit in the target
+     * bitfield, or if some of them would have an index that cannot be
+     * represented in the patch index tiles.
+     */
+    void checkCapacity(int neededPatchCount) throws CodecException {
+        if(patchIndexOffset + neededPatchCount > getPatchCount() || neededPatchCount > maxPatchCount(getFormatVersion())) {
             throw new CodecException("Too much data to fit in this image.");
         }
+    }
+    
+    /**
+     * Returns the number of patches whose index can be represented in format
+     * <code>version</code>.
+     */
+    private static int maxPatchCount(int version) {
+        switch(version) {
+        case COMPACT_INDEX_VERSION:
+            return INVALID_PATCH_INDEX;
+        case EXTENDED_INDEX_VERSION:
+            return EXTENDED_INVALID_PATCH_INDEX;
+        case CODEWORD_LENGTH_VERSION:
+            return CODEWORD_LENGTH_INVALID_PATCH_INDEX;
+        default:
+            return MULTIPLEXED_INVALID_PATCH_INDEX;
+        }
+    }
+    
+    /**
+     * Plans a payload of <code>payloadLength</code> bytes in a carrier of
+     * <code>width</code> by <code>height</code> pixels, at <code>ecLevel
+     * </code> with codewords of the default length. See <code>plan(int, int,
+     * ErrorCorrectionLevel, int, int)</code>.
+     */
+    public static CapacityPlan plan(int width, int height, ErrorCorrectionLevel ecLevel, int payloadLength) {
+        return plan(width, height, ecLevel, DEFAULT_CODEWORD_LENGTH, payloadLength);
+    }
+    
+    /**
+     * Works out how much a carrier of <code>width</code> by <code>height
+     * </code> pixels holds at <code>ecLevel</code> with codewords of <code>
+     * codewordLength</code> symbols, and what encoding and decoding a payload
+     * of <code>payloadLength</code> bytes in it costs. The payload is laid
+     * out as <code>encode</code> would lay it out, but nothing is encoded,
+     * so a plan takes constant time.
+     */
+    public static CapacityPlan plan(int width, int height, ErrorCorrectionLevel ecLevel, int codewordLength, int payloadLength) {
+        if(codewordLengthCode(codewordLength) < 0) {
+            throw new IllegalArgumentException("codewordLength must be a multiple of 256 up to 3840, or 4095.");
+        }
+        if(width < 0 || height < 0 || payloadLength < 0) {
+            throw new IllegalArgumentException("width, height and payloadLength must not be negative.");
+        }
+        int patchCount = (width / PATCH_WIDTH_BITS) * (height / PATCH_WIDTH_BITS);
+        int packetLength = ecLevel.getMessageSymbolCount(codewordLength);
+        int checkSymbolCount = codewordLength - packetLength;
+        int version = payloadFormatVersion(codewordLength, packetLength, payloadLength);
+        int groupSize = dataTilesPerPatch(version);
         
-        List<Integer> patchOrdering = new ArrayList<Integer>(patchCount);
-        for(int i = 0; i < patchCount; i++) {
-            patchOrdering.add(i);
+        /*
+         * Filling every slot may take the extended patch index format, whose
+         * patches hold one data tile less, so a carrier with only a few more
+         * slots than the compact format can address holds more in that.
+         */
+        int slotVersion = formatVersion(codewordLength, patchCount);
+        int patchCapacity = Math.min(patchCount, maxPatchCount(slotVersion));
+        int maxPayloadLength = maxPayloadLength(patchCapacity, dataTilesPerPatch(slotVersion), packetLength, codewordLength);
+        if(slotVersion == EXTENDED_INDEX_VERSION) {
+            int compactMaxPayloadLength = maxPayloadLength(INVALID_PATCH_INDEX, DATA_TILES_PER_PATCH, packetLength, codewordLength);
+            if(compactMaxPayloadLength > maxPayloadLength) {
+                patchCapacity = INVALID_PATCH_INDEX;
+                maxPayloadLength = compactMaxPayloadLength;
+            }
         }
-        Collections.shuffle(patchOrdering, shuffleRandom);
         
-        int patchIndex = 0;
-        int neededPatchCount = MathUtils.ceilDivide(codewords.size(), DATA_TILES_PER_PATCH) * CODEWORD_LENGTH;
-        for(int patchIndexInBitfield : patchOrdering) {
-            int xPatch = patchIndexInBitfield % widthPatches;
-            int yPatch = patchIndexInBitfield / widthPatches;
-            int xMinInPatch = xPatch * PATCH_WIDTH_BITS;
-            int yMinInPatch = yPatch * PATCH_WIDTH_BITS;
-            int codewordStartIndex = patchIndex / CODEWORD_LENGTH * DATA_TILES_PER_PATCH;
-            int symbolIndex = patchIndex % CODEWORD_LENGTH;
-            patchMetadata.checksum = patchMetadata.calcChecksum(patchIndex);
-            
-            for(int yTile = 0; yTile < PATCH_WIDTH_TILES; yTile++) {
-                for(int xTile = 0; xTile < PATCH_WIDTH_TILES; xTile++) {
-                    int tileIndex = yTile * PATCH_WIDTH_TILES + xTile;
-                    int x = xMinInPatch + xTile * TILE_WIDTH;
-                    int y = yMinInPatch + yTile * TILE_WIDTH;
-                    int tilePayload;
-                    if(tileIndex == PATCH_INDEX_TILE_INDEX) {
-                        if(patchIndex < neededPatchCount) {
-                            tilePayload = patchIndex;
-                        } else {
-                            tilePayload = INVALID_PATCH_INDEX;
-                        }
-                    } else if(tileIndex == METADATA_TILE_INDEX) {
-                        tilePayload = patchMetadata.getMetadataWord();
+        PacketLayout packetLayout = new PacketLayout(packetLength, groupSize, Math.min(payloadLength, DATA_MAX_LENGTH + 1) + 8, true);
+        int codewordCount = packetLayout.getPacketCount();
+        int neededPatchCount = payloadPatchCount(payloadLength, packetLength, groupSize, codewordLength);
+        
+        /*
+         * A batch encode holds the symbols of the message twice, split into
+         * packets, and their codewords; a stream encode holds two groups of
+         * packets and one of codewords. Decoding sizes its codeword matrix
+         * for every patch position in the bitfield.
+         */
+        long bitfieldMemory = ((long)width + Integer.SIZE - 1) / Integer.SIZE * height * 4;
+        long encodeMemory = bitfieldMemory + payloadLength + (long)codewordCount * (2 * packetLength + codewordLength) * 4;
+        long streamEncodeMemory = bitfieldMemory + (long)groupSize * (2 * packetLength + codewordLength) * 4;
+        long positionCount = (long)MathUtils.ceilDivide(width + PATCH_WIDTH_BITS - 1, PATCH_WIDTH_BITS) * MathUtils.ceilDivide(height + PATCH_WIDTH_BITS - 1, PATCH_WIDTH_BITS);
+        long matrixCodewordCount = (positionCount + codewordLength - 1) / codewordLength * DATA_TILES_PER_PATCH;
+        long matrixCodewordMemory = codewordLength * 2 + MathUtils.ceilDivide(codewordLength, Long.SIZE) * 16 + 8;
+        long decodeMemory = bitfieldMemory + matrixCodewordCount * matrixCodewordMemory + payloadLength;
+        
+        /*
+         * Encoding a codeword computes the syndromes of its message symbols
+         * and evaluates a polynomial of the check symbol count at each check
+         * symbol. Decoding computes the syndromes of the whole codeword, and
+         * to correct errors, searches every position for a root of the error
+         * locator and evaluates the errors there.
+         */
+        long encodeOperations = (long)codewordCount * checkSymbolCount * (packetLength + 2 * checkSymbolCount);
+        long decodeOperations = (long)codewordCount * checkSymbolCount * (2 * codewordLength + 2 * checkSymbolCount);
+        
+        return new CapacityPlan(version, ecLevel, codewordLength, patchCapacity, maxPayloadLength, payloadLength,
+                codewordCount, neededPatchCount, encodeMemory, streamEncodeMemory, decodeMemory, encodeOperations,
+                decodeOperations);
+    }
+    
+    /**
+     * Returns the length in bytes of the longest message whose codewords fit
+     * in <code>patchCapacity</code> patches, or -1 if not even an empty one
+     * fits.
+     */
+    private static int maxPayloadLength(int patchCapacity, int groupSize, int packetLength, int codewordLength) {
+        /*
+         * Every group but the last fills as many patches as a codeword has
+         * symbols. The symbols of the last group are spread evenly over as
+         * few packets as can hold them, see PacketLayout, and it needs as
+         * many patches as those packets have symbols, plus the check
+         * symbols. So k packets hold k times the even number of symbols that
+         * fit in the patches left over, as long as those need k packets,
+         * which holds up to some number of packets.
+         */
+        int fullGroupCount = patchCapacity / codewordLength;
+        long symbolCount = (long)fullGroupCount * groupSize * packetLength;
+        int leftoverPatchCount = patchCapacity - fullGroupCount * codewordLength;
+        int tailPacketLength = Math.min(packetLength, (leftoverPatchCount - (codewordLength - packetLength)) & ~1);
+        int tailPacketCount = 0;
+        while(tailPacketLength > 0 && tailPacketCount < groupSize
+                && (long)(tailPacketCount + 1) * tailPacketLength > (long)tailPacketCount * packetLength) {
+            tailPacketCount++;
+        }
+        symbolCount += (long)tailPacketCount * tailPacketLength;
+        long maxPayloadLength = symbolCount / 2 * 3 - 8;
+        return (int)Math.max(-1, Math.min(maxPayloadLength, DATA_MAX_LENGTH));
+    }
+    
+    /**
+     * Returns the pseudorandom permutation of the patch slots in the target
+     * bitfield. Patch number <code>i</code> is stored in slot <code>
+     * forward(i)</code>.
+     */
+    PatchPermutation newPatchPermutation() {
+        return new PatchPermutation(getPatchCount(), PATCH_PERMUTATION_KEY);
+    }
+    
+    /**
+     * Returns the slot of patch number <code>patchIndex</code>, which follows
+     * the patches of the streams encoded before by <code>encodeStreams
+     * </code>, if any.
+     */
+    int patchSlot(PatchPermutation patchPermutation, int patchIndex) {
+        return patchPermutation.forward(patchIndexOffset + patchIndex);
+    }
+    
+    /**
+     * Packs patch number <code>patchIndex</code> into slot <code>
+     * patchIndexInBitfield</code> of the target bitfield.
+     * <code>groupCodewords</code> holds the codewords of the patch's group;
+     * tiles without a codeword, and all data tiles of unused patches, are
+     * filled with zeros. Unused patches are marked with all index bits set,
+     * in both patch index tiles.
+     */
+    void packPatch(int patchIndexInBitfield, int patchIndex, boolean patchUsed, List<int[]> groupCodewords, ParitySource paritySource) {
+        PatchMetadata patchMetadata = new PatchMetadata();
+        patchMetadata.version = getFormatVersion();
+        boolean extendedIndex = (patchMetadata.version != COMPACT_INDEX_VERSION);
+        patchMetadata.ecLevelId = ecLevel.ordinal();
+        patchMetadata.codewordLengthCode = codewordLengthCode(codewordLength);
+        int indexWord = patchUsed ? patchIndex : EXTENDED_INVALID_PATCH_INDEX;
+        if(patchMetadata.version == COMPACT_INDEX_VERSION) {
+            // The checksum covers the index as stored, so unused patches vote too
+            indexWord &= INVALID_PATCH_INDEX;
+        } else if(patchMetadata.version == CODEWORD_LENGTH_VERSION) {
+            indexWord = (indexWord & CODEWORD_LENGTH_INVALID_PATCH_INDEX) | (patchMetadata.codewordLengthCode << (TILE_PAYLOAD_SIZE + CODEWORD_LENGTH_CODE_SHIFT));
+        } else if(patchMetadata.version == MULTIPLEXED_VERSION) {
+            indexWord = (indexWord & MULTIPLEXED_INVALID_PATCH_INDEX) | (streamId << (TILE_PAYLOAD_SIZE + STREAM_ID_SHIFT))
+                    | (patchMetadata.codewordLengthCode << (TILE_PAYLOAD_SIZE + CODEWORD_LENGTH_CODE_SHIFT));
+        }
+        patchMetadata.checksum = patchMetadata.calcChecksum(indexWord);
+        
+        int widthPatches = targetBitfield.getWidth() / PATCH_WIDTH_BITS;
+        int xPatch = patchIndexInBitfield % widthPatches;
+        int yPatch = patchIndexInBitfield / widthPatches;
+        int xMinInPatch = xPatch * PATCH_WIDTH_BITS;
+        int yMinInPatch = yPatch * PATCH_WIDTH_BITS;
+        int symbolIndex = patchIndex % codewordLength;
+        
+        for(int yTile = 0; yTile < PATCH_WIDTH_TILES; yTile++) {
+            for(int xTile = 0; xTile < PATCH_WIDTH_TILES; xTile++) {
+                int tileIndex = yTile * PATCH_WIDTH_TILES + xTile;
+                int x = xMinInPatch + xTile * TILE_WIDTH;
+                int y = yMinInPatch + yTile * TILE_WIDTH;
+                int tilePayload;
+                if(tileIndex == PATCH_INDEX_TILE_INDEX) {
+                    tilePayload = indexWord & TILE_PAYLOAD_MASK;
+                } else if(tileIndex == PATCH_INDEX_EXTENSION_TILE_INDEX && extendedIndex) {
+                    tilePayload = indexWord >>> TILE_PAYLOAD_SIZE;
+                } else if(tileIndex == METADATA_TILE_INDEX) {
+                    tilePayload = patchMetadata.getMetadataWord();
+                } else {
+                    if(patchUsed && tileIndex < groupCodewords.size()) {
+                        tilePayload = groupCodewords.get(tileIndex)[symbolIndex];
                     } else {
-                        int codewordIndex = codewordStartIndex + tileIndex;
-                        if(codewordIndex < codewords.size()) {
-                            tilePayload = codewords.get(codewordIndex)[symbolIndex];
-                        } else {
-                            tilePayload = 0;
-                        }
+                        tilePayload = 0;
                     }
-                    packTile(x, y, xTile, yTile, tilePayload, parityRandom);
+                }
+                packTile(x, y, xTile, yTile, tilePayload, paritySource.nextFlipIndex(patchIndex, tileIndex));
+            }
+        }
+    }
+    
+    /**
+     * Returns the Reed-Solomon code for the current error correction level
+     * and codeword length.
+     */
+    ReedSolomon getReedSolomon() {
+        return getReedSolomon(ecLevel, codewordLength);
+    }
+    
+    /**
+     * Returns the Reed-Solomon code for <code>ecLevel</code> and <code>
+     * codewordLength</code>. Setting up a code takes time quadratic in the
+     * codeword length, so the last one is kept, and the codes are shared by
+     * all codecs, as there are only a few of them and they never change.
+     */
+    private ReedSolomon getReedSolomon(ErrorCorrectionLevel ecLevel, int codewordLength) {
+        int messageSymbolCount = ecLevel.getMessageSymbolCount(codewordLength);
+        if(rsCode == null || rsCode.getCodewordLength() != codewordLength || rsCode.getMessageSize() != messageSymbolCount) {
+            Integer key = (messageSymbolCount << 12) | codewordLength;
+            rsCode = SHARED_CODES.get(key);
+            if(rsCode == null) {
+                ReedSolomon newCode = new ReedSolomon(DATA_FIELD, messageSymbolCount, codewordLength - messageSymbolCount);
+                rsCode = SHARED_CODES.putIfAbsent(key, newCode);
+                if(rsCode == null) {
+                    rsCode = newCode;
                 }
             }
-            
-            patchIndex++;
         }
+        return rsCode;
     }
     
-    private void packTile(int x, int y, int xTile, int yTile, int tilePayload, Random parityRandom) {
+    /**
+     * Returns the 4-bit code for <code>codewordLength</code> stored in
+     * version 2 patches, or -1 if it cannot be encoded.
+     */
+    static int codewordLengthCode(int codewordLength) {
+        if(codewordLength == MAX_CODEWORD_LENGTH) {
+            return 15;
+        }
+        if(codewordLength <= 0 || codewordLength % DEFAULT_CODEWORD_LENGTH != 0 || codewordLength / DEFAULT_CODEWORD_LENGTH > 15) {
+            return -1;
+        }
+        return codewordLength / DEFAULT_CODEWORD_LENGTH - 1;
+    }
+    
+    static int codewordLength(int codewordLengthCode) {
+        return (codewordLengthCode == 15) ? MAX_CODEWORD_LENGTH : (codewordLengthCode + 1) * DEFAULT_CODEWORD_LENGTH;
+    }
+    
+    private void packTile(int x, int y, int xTile, int yTile, int tilePayload, int flipIndex) {
         int tileBits = tilePayload ^ scrambleMask(xTile, yTile);
         tileBits |= posToLocalTileIndex(xTile, yTile) << TILE_PAYLOAD_SIZE;
         /*
@@ -165,116 +1113,442 @@ public class RStegCodec {
          * bits in the alignment word. The error will be uniformly
          * distributed over the alignment possibilities.
          */
-        tileBits ^= calcParity(tileBits) << (TILE_PAYLOAD_SIZE + parityRandom.nextInt(4));
+        tileBits ^= calcParity(tileBits) << (TILE_PAYLOAD_SIZE + flipIndex);
         targetBitfield.setBits(x, y, TILE_SIZE, tileBits, TILE_WIDTH);
     }
     
     public byte[] decode() throws CodecException {
-        List<int[]> packets = decodePackets();
-        byte[] data;
-        int checksum;
-        try(
-                RStegPacketInputStream packetInputStream = new RStegPacketInputStream();
-                DataInputStream dataInputStream = new DataInputStream(packetInputStream);
-        ) {
-            packetInputStream.putPackets(packets);
-            int length = dataInputStream.readInt();
-            if(length < 0 || length > DATA_MAX_LENGTH) {
-                throw new CodecException("Decoding failed.");
-            }
-            data = new byte[length];
-            dataInputStream.readFully(data);
-            checksum = dataInputStream.readInt();
+        int[] alignments = guessAlignments(alignmentCandidates);
+        if(alignments.length > 1) {
+            return decodeSpeculatively(alignments);
+        }
+        return decode(alignments[0]);
+    }
+    
+    /**
+     * Decodes the message, assuming that the patches have alignment <code>
+     * alignment</code>.
+     */
+    private byte[] decode(int alignment) throws CodecException {
+        try {
+            return readMessage(decodeStream(alignment));
+        } catch(CodecException e) {
+            /*
+             * The stream scans the rest of the patches by itself to correct a
+             * codeword, but a message that corrected to the wrong data is
+             * only found out by its checksum, and a wrong length word in the
+             * first codeword may have made the stream give up on a later
+             * one. Neither can be undone within the stream.
+             */
+            if(!progressiveDecoding) {
+                throw e;
+            }
+            return readMessage(decodeStream(alignment, false));
+        }
+    }
+    
+    /**
+     * Reads the whole message from <code>decoderInputStream</code> and
+     * closes it.
+     */
+    private static byte[] readMessage(RStegDecoderInputStream decoderInputStream) throws CodecException {
+        try {
+            if(decoderInputStream.isCompressed()) {
+                return IOUtils.readStreamFully(decoderInputStream);
+            }
+            byte[] data = new byte[decoderInputStream.getLength()];
+            int offset = 0;
+            while(offset < data.length) {
+                offset += decoderInputStream.read(data, offset, data.length - offset);
+            }
+            return data;
+        } catch(IOException e) {
+            if(e.getCause() instanceof CodecException) {
+                throw (CodecException)e.getCause();
+            }
+            throw new CodecException("Decoding failed.", e);
+        } finally {
+            decoderInputStream.close();
+        }
+    }
+    
+    /**
+     * Returns a stream of the hidden message, whose codewords are error
+     * corrected as the message is read. See <code>RStegDecoderInputStream
+     * </code>. The first codeword is corrected up front, and if any codeword
+     * of the message has too few symbols to be corrected, an <code>
+     * UnrecoverableCodewordsException</code> listing them is thrown without
+     * correcting the others.
+     */
+    public RStegDecoderInputStream decodeStream() throws CodecException {
+        return decodeStream(guessAlignment());
+    }
+    
+    private RStegDecoderInputStream decodeStream(int alignment) throws CodecException {
+        return decodeStream(alignment, progressiveDecoding);
+    }
+    
+    /**
+     * Returns a stream of the message read with or without a progressive
+     * scan. If a progressive scan stops early, the stream is given a full
+     * scan to fall back on for codewords that turn out to have too many
+     * errors.
+     */
+    private RStegDecoderInputStream decodeStream(final int alignment, boolean progressive) throws CodecException {
+        CodewordMatrix codewordMatrix = decodeCodewords(alignment, progressive);
+        if(ecLevel == null) {
+            throw new CodecException("Decoding failed: no valid patches found.");
+        }
+        RStegDecoderInputStream.FullScan fullScan = null;
+        if(decodedFirstPacket != null) {
+            final ErrorCorrectionLevel scannedEcLevel = ecLevel;
+            final int scannedCodewordLength = codewordLength;
+            fullScan = new RStegDecoderInputStream.FullScan() {
+                @Override
+                public CodewordMatrix scan() throws CodecException {
+                    CodewordMatrix fullCodewordMatrix = decodeCodewords(alignment, false);
+                    // The stream can only go on with the same code
+                    if(ecLevel != scannedEcLevel || codewordLength != scannedCodewordLength) {
+                        return null;
+                    }
+                    return fullCodewordMatrix;
+                }
+            };
+        }
+        RStegDecoderInputStream decoderInputStream = new RStegDecoderInputStream(getReedSolomon(), codewordMatrix, decodedGroupSize, decodedFirstPacket, fullScan);
+        try {
+            decoderInputStream.getLength();
         } catch(IOException e) {
+            if(e.getCause() instanceof CodecException) {
+                throw (CodecException)e.getCause();
+            }
             throw new CodecException("Decoding failed.", e);
         }
-        DATA_CRC.reset();
-        DATA_CRC.updateWithInt(data.length);
-        if(DATA_CRC.update(data, 0, data.length) != checksum) {
-            throw new CodecException("Decoding failed: incorrect data checksum.");
+        return decoderInputStream;
+    }
+    
+    /**
+     * Quickly estimates whether the target bitfield holds a message, without
+     * correcting any codeword. The alignment is estimated from a sample of
+     * tiles as in a progressive decode, and then the index and metadata tiles
+     * of up to <code>PROBE_SAMPLE_PATCHES</code> patch positions spread over
+     * the bitfield are checked; unused patches count as well, since they
+     * carry the metadata too. A message encoded sparsely into a small part
+     * of a large image may go unnoticed.
+     */
+    public ProbeResult probe() {
+        int rowStep = sampledAlignmentRowStep();
+        float[] tileConfidences = calcTileAlignmentConfidences(rowStep);
+        int alignment = guessAlignment(tileConfidences, rowStep);
+        int xOffset = alignment & 0b1111;
+        int yOffset = (alignment >>> 4) & 0b1111;
+        int xFirstPatch = (xOffset - 16) % 16;
+        int yFirstPatch = (yOffset - 16) % 16;
+        int widthPositions = MathUtils.ceilDivide(targetBitfield.getWidth() - xFirstPatch, PATCH_WIDTH_BITS);
+        int heightPositions = MathUtils.ceilDivide(targetBitfield.getHeight() - yFirstPatch, PATCH_WIDTH_BITS);
+        int positionCount = widthPositions * heightPositions;
+        int positionBits = 32 - Integer.numberOfLeadingZeros(positionCount - 1);
+        
+        PatchMetadata patchMetadata = new PatchMetadata();
+        IntModeFinder metadataModeFinder = new IntModeFinder(1 << METADATA_VOTE_BITS);
+        int sampledPatchCount = 0;
+        for(int i = 0; i < 1 << positionBits && sampledPatchCount < PROBE_SAMPLE_PATCHES; i++) {
+            int position = Integer.reverse(i) >>> (32 - positionBits);
+            if(position >= positionCount) {
+                continue;
+            }
+            sampledPatchCount++;
+            int xMinInPatch = xFirstPatch + position % widthPositions * PATCH_WIDTH_BITS;
+            int yMinInPatch = yFirstPatch + position / widthPositions * PATCH_WIDTH_BITS;
+            int indexWord = readIndexWord(xMinInPatch, yMinInPatch, patchMetadata);
+            if(indexWord >= 0 && patchMetadata.checksumValid(indexWord)) {
+                metadataModeFinder.add(patchMetadata.getVote());
+            }
+        }
+        
+        float parityConfidence = tileConfidences[indexOfMax(tileConfidences)];
+        if(!metadataModeFinder.hasMode()) {
+            return new ProbeResult(parityConfidence, sampledPatchCount, 0, 0, 0, -1, null, 0);
         }
-        return data;
+        patchMetadata.setVote(metadataModeFinder.getMode());
+        return new ProbeResult(parityConfidence, sampledPatchCount, metadataModeFinder.getTotal(),
+                metadataModeFinder.getCount(metadataModeFinder.getMode()), metadataModeFinder.getMargin(),
+                patchMetadata.version, ErrorCorrectionLevel.values()[patchMetadata.ecLevelId],
+                codewordLength(patchMetadata.codewordLengthCode));
     }
     
-    private List<int[]> decodePackets() throws CodecException {
-        Map<Integer, int[]> codewordMap = decodeCodewords();
-        int messageSymbolCount = ecLevel.messageSymbolCount;
-        int checkSymbolCount = CODEWORD_LENGTH - messageSymbolCount;
-        ReedSolomon rsCode = new ReedSolomon(DATA_FIELD, messageSymbolCount, checkSymbolCount);
-        List<int[]> packets = new ArrayList<int[]>();
-        for(int i = 0; codewordMap.containsKey(i); i++) {
-            int[] codeword = codewordMap.get(i);
-            /*
-             * Current decoder does not support known erasures, so replace
-             * ERASED_SYMBOL with an arbitrary value.
-             */
-            for(int j = 0; j < codeword.length; j++) {
-                if(codeword[j] == ERASED_SYMBOL) {
-                    codeword[j] = 0;
+    /**
+     * Decodes the message assuming each of <code>alignments</code> at once,
+     * each on a copy of this codec that shares the parallelism. The first
+     * message whose checksum verifies is returned, and the decodes still
+     * running are interrupted. The state of the copy that decoded it is
+     * taken over; if all fail, that of the first alignment, which is the
+     * most likely, is taken over, and so is its failure.
+     */
+    private byte[] decodeSpeculatively(int[] alignments) throws CodecException {
+        int candidateCount = alignments.length;
+        RStegCodec[] copies = new RStegCodec[candidateCount];
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(candidateCount);
+        CodecException[] failures = new CodecException[candidateCount];
+        ExecutorService executor = Executors.newFixedThreadPool(candidateCount);
+        try {
+            CompletionService<byte[]> completionService = new ExecutorCompletionService<byte[]>(executor);
+            for(int i = 0; i < candidateCount; i++) {
+                final RStegCodec copy = new RStegCodec();
+                copy.setTargetBitfield(targetBitfield);
+                copy.setProgressiveDecoding(progressiveDecoding);
+                copy.setStreamId(streamId);
+                copy.setParallelism(Math.max(1, parallelism / candidateCount));
+                final int alignment = alignments[i];
+                copies[i] = copy;
+                futures.add(completionService.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws CodecException {
+                        return copy.decode(alignment);
+                    }
+                }));
+            }
+            for(int i = 0; i < candidateCount; i++) {
+                Future<byte[]> future = completionService.take();
+                int candidateIndex = futures.indexOf(future);
+                try {
+                    byte[] data = future.get();
+                    takeDecodedState(copies[candidateIndex]);
+                    return data;
+                } catch(ExecutionException e) {
+                    if(e.getCause() instanceof CodecException) {
+                        failures[candidateIndex] = (CodecException)e.getCause();
+                    } else {
+                        failures[candidateIndex] = new CodecException("Decoding failed.", e.getCause());
+                    }
                 }
             }
-            packets.add(rsCode.decode(codeword));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodecException("Decoding failed.", e);
+        } finally {
+            executor.shutdownNow();
         }
-        return packets;
+        takeDecodedState(copies[0]);
+        throw failures[0];
     }
-
-    private Map<Integer, int[]> decodeCodewords() throws CodecException {
-        int alignment = guessAlignment();
+    
+    /**
+     * Takes over what <code>copy</code> learnt from the target bitfield while
+     * decoding.
+     */
+    private void takeDecodedState(RStegCodec copy) {
+        ecLevel = copy.ecLevel;
+        codewordLength = copy.codewordLength;
+        rsCode = copy.rsCode;
+        metadataVoteCount = copy.metadataVoteCount;
+        metadataVoteMargin = copy.metadataVoteMargin;
+        decodedFirstPacket = copy.decodedFirstPacket;
+        decodedGroupSize = copy.decodedGroupSize;
+    }
+    
+    /**
+     * Scans the patches of the target bitfield into codewords, assuming the
+     * patches have alignment <code>alignment</code>, and takes the metadata
+     * from the vote. A progressive scan leaves <code>decodedFirstPacket
+     * </code> set if it stopped early.
+     */
+    private CodewordMatrix decodeCodewords(int alignment, final boolean progressive) throws CodecException {
         int xOffset = alignment & 0b1111;
         int yOffset = (alignment >>> 4) & 0b1111;
+        final int xFirstPatch = (xOffset - 16) % 16;
+        final int yFirstPatch = (yOffset - 16) % 16;
+        final int widthPositions = MathUtils.ceilDivide(targetBitfield.getWidth() - xFirstPatch, PATCH_WIDTH_BITS);
+        int heightPositions = MathUtils.ceilDivide(targetBitfield.getHeight() - yFirstPatch, PATCH_WIDTH_BITS);
+        final int positionCount = widthPositions * heightPositions;
         PatchMetadata patchMetadata = new PatchMetadata();
-        Map<Integer, int[]> codewordMap = new HashMap<Integer, int[]>();
-        ModeFinder<Integer> metadataModeFinder = new ModeFinder<Integer>();
-        
-        for(int yMinInPatch = (yOffset - 16) % 16; yMinInPatch < targetBitfield.getHeight(); yMinInPatch += 16) {
-            for(int xMinInPatch = (xOffset - 16) % 16; xMinInPatch < targetBitfield.getWidth(); xMinInPatch += 16) {
-                int patchIndex = unpackTileIfExists(xMinInPatch + 8, yMinInPatch + 12, 2, 3);
-                int metadataWord = unpackTileIfExists(xMinInPatch + 12, yMinInPatch + 12, 3, 3);
-                int symbolIndex = patchIndex % CODEWORD_LENGTH;
-                if(patchIndex != ERASED_SYMBOL && patchIndex != INVALID_PATCH_INDEX && metadataWord != ERASED_SYMBOL) {
-                    patchMetadata.setMetadataWord(metadataWord);
-                    if(patchMetadata.checksumValid(patchIndex)) {
-                        metadataModeFinder.add(metadataWord & 0b1111);
-                        for(int yTile = 0; yTile < 4; yTile++) {
-                            for(int xTile = 0; xTile < 4; xTile++) {
-                                int tileIndex = yTile * PATCH_WIDTH_TILES + xTile;
-                                if(tileIndex < DATA_TILES_PER_PATCH) {
-                                    int symbol = unpackTileIfExists(xMinInPatch + xTile * TILE_WIDTH, yMinInPatch + yTile * TILE_WIDTH, xTile, yTile);
-                                    if(symbol != ERASED_SYMBOL) {
-                                        int codewordIndex = patchIndex / CODEWORD_LENGTH * DATA_TILES_PER_PATCH + tileIndex;
-                                        
-                                        int[] codeword;
-                                        if(codewordMap.containsKey(codewordIndex)) {
-                                            codeword = codewordMap.get(codewordIndex);
-                                        } else {
-                                            codeword = new int[CODEWORD_LENGTH];
-                                            Arrays.fill(codeword, ERASED_SYMBOL);
-                                            codewordMap.put(codewordIndex, codeword);
-                                        }
-                                        
-                                        /* TODO: If different patches supply
-                                         * different symbols at the same location,
-                                         * treat that location as an erasure
-                                         */
-                                        codeword[symbolIndex] = symbol;
-                                    }
+        /*
+         * Patches are collected in a matrix per codeword length, so that the
+         * symbols of stray patches with another length cannot mix with those
+         * of the message. The vote decides which matrix is decoded.
+         */
+        CodewordMatrices codewordMatrices = new CodewordMatrices(positionCount);
+        IntModeFinder metadataModeFinder = new IntModeFinder(1 << METADATA_VOTE_BITS);
+        
+        /*
+         * A progressive scan visits the patch positions in bit-reversed
+         * order, which spreads the patches read so far evenly over the
+         * bitfield, and stops once every needed codeword can be corrected.
+         */
+        DecodeProgress progress = progressive ? new DecodeProgress() : null;
+        decodedFirstPacket = null;
+        final int positionBits = 32 - Integer.numberOfLeadingZeros(positionCount - 1);
+        int scanLength = progressive ? 1 << positionBits : positionCount;
+        
+        /*
+         * The scan proceeds in rounds. Each round is split into contiguous
+         * slices, one per thread, which are horizontal bands of patch rows in
+         * a full scan. Every slice records the patches it reads, and the
+         * records are merged into the matrix and the vote in scan order. A
+         * progressive scan uses slices of PROGRESS_CHECK_INTERVAL positions
+         * and checks its progress after merging each of them, so the result
+         * does not depend on the number of threads. A full scan on a single
+         * thread uses such slices too, which keeps the records small.
+         */
+        int sliceCount;
+        int sliceLength;
+        if(progressive || parallelism == 1) {
+            sliceCount = parallelism;
+            sliceLength = PROGRESS_CHECK_INTERVAL;
+        } else {
+            sliceCount = Math.min(parallelism, heightPositions);
+            sliceLength = MathUtils.ceilDivide(heightPositions, sliceCount) * widthPositions;
+        }
+        int roundLength = sliceCount * sliceLength;
+        ScannedPatches[] slices = new ScannedPatches[sliceCount];
+        for(int sliceIndex = 0; sliceIndex < sliceCount; sliceIndex++) {
+            slices[sliceIndex] = new ScannedPatches();
+        }
+        ExecutorService executor = (sliceCount > 1) ? Executors.newFixedThreadPool(sliceCount) : null;
+        try {
+            for(int roundStart = 0; roundStart < scanLength; roundStart += roundLength) {
+                if(Thread.currentThread().isInterrupted()) {
+                    throw new CodecException("Decoding interrupted.");
+                }
+                int roundEnd = Math.min(roundStart + roundLength, scanLength);
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(sliceCount);
+                for(int sliceIndex = 0; sliceIndex < sliceCount; sliceIndex++) {
+                    final ScannedPatches slice = slices[sliceIndex];
+                    final int start = Math.min(roundStart + sliceIndex * sliceLength, roundEnd);
+                    final int end = Math.min(start + sliceLength, roundEnd);
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            slice.clear();
+                            for(int i = start; i < end; i++) {
+                                int position = progressive ? Integer.reverse(i) >>> (32 - positionBits) : i;
+                                if(position >= positionCount) {
+                                    continue;
                                 }
+                                int xMinInPatch = xFirstPatch + position % widthPositions * PATCH_WIDTH_BITS;
+                                int yMinInPatch = yFirstPatch + position / widthPositions * PATCH_WIDTH_BITS;
+                                decodePatch(xMinInPatch, yMinInPatch, slice);
                             }
+                            return null;
                         }
+                    });
+                }
+                runTasks(executor, tasks, "Decoding failed.");
+                for(ScannedPatches slice : slices) {
+                    slice.mergeInto(codewordMatrices, metadataModeFinder);
+                    if(progress != null && progress.isComplete(codewordMatrices, metadataModeFinder)) {
+                        decodedFirstPacket = progress.firstPacket;
+                        break;
                     }
                 }
+                if(decodedFirstPacket != null) {
+                    break;
+                }
+            }
+        } finally {
+            if(executor != null) {
+                executor.shutdown();
             }
         }
         
-        if(metadataModeFinder.hasMode()) {
-            patchMetadata.setMetadataWord(metadataModeFinder.getMode());
-            if(patchMetadata.version != VERSION) {
-                throw new CodecException("Decoding failed: version mismatch.");
-            }
-            ecLevel = ErrorCorrectionLevel.values()[patchMetadata.ecLevelId];
+        metadataVoteCount = metadataModeFinder.getTotal();
+        metadataVoteMargin = metadataModeFinder.getMargin();
+        if(!metadataModeFinder.hasMode()) {
+            return new CodewordMatrix(codewordLength, 0);
+        }
+        patchMetadata.setVote(metadataModeFinder.getMode());
+        if(patchMetadata.version > VERSION) {
+            throw new CodecException("Decoding failed: version mismatch.");
+        }
+        ecLevel = ErrorCorrectionLevel.values()[patchMetadata.ecLevelId];
+        codewordLength = codewordLength(patchMetadata.codewordLengthCode);
+        decodedGroupSize = dataTilesPerPatch(patchMetadata.version);
+        return codewordMatrices.get(patchMetadata.codewordLengthCode);
+    }
+    
+    /**
+     * Reads the patch whose top left corner lies at (<code>xMinInPatch</code>,
+     * <code>yMinInPatch</code>) and, if its index and metadata are valid,
+     * records it in <code>scannedPatches</code>. The version field of the
+     * metadata tells whether the patch index has an extension tile and what
+     * it holds; it is covered by the checksum along with both index tiles.
+     */
+    private void decodePatch(int xMinInPatch, int yMinInPatch, ScannedPatches scannedPatches) {
+        PatchMetadata patchMetadata = scannedPatches.patchMetadata;
+        int indexWord = readIndexWord(xMinInPatch, yMinInPatch, patchMetadata);
+        if(indexWord < 0) {
+            return;
+        }
+        int patchIndex = patchIndex(indexWord, patchMetadata.version);
+        if(patchIndex < 0 || !patchMetadata.checksumValid(indexWord) || patchMetadata.streamId != streamId) {
+            return;
         }
         
-        return codewordMap;
+        int dataTileCount = dataTilesPerPatch(patchMetadata.version);
+        int patchCodewordLength = codewordLength(patchMetadata.codewordLengthCode);
+        int symbolOffset = scannedPatches.add(patchIndex % patchCodewordLength, patchIndex / patchCodewordLength * dataTileCount, patchMetadata.getVote());
+        int[] symbols = scannedPatches.getSymbols();
+        for(int yTile = 0; yTile < 4; yTile++) {
+            for(int xTile = 0; xTile < 4; xTile++) {
+                int tileIndex = yTile * PATCH_WIDTH_TILES + xTile;
+                if(tileIndex < dataTileCount) {
+                    symbols[symbolOffset + tileIndex] = unpackTileIfExists(xMinInPatch + xTile * TILE_WIDTH, yMinInPatch + yTile * TILE_WIDTH, xTile, yTile);
+                } else if(tileIndex < DATA_TILES_PER_PATCH) {
+                    symbols[symbolOffset + tileIndex] = ERASED_SYMBOL;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads the metadata of the patch at (<code>xMinInPatch</code>, <code>
+     * yMinInPatch</code>) into <code>patchMetadata</code>, and returns the
+     * word held by its index tiles, or -1 if a tile cannot be read or the
+     * version is unknown. The checksum is not verified.
+     */
+    private int readIndexWord(int xMinInPatch, int yMinInPatch, PatchMetadata patchMetadata) {
+        int metadataWord = unpackTileIfExists(xMinInPatch + 12, yMinInPatch + 12, METADATA_TILE_X, METADATA_TILE_Y);
+        if(metadataWord == ERASED_SYMBOL) {
+            return -1;
+        }
+        int indexWord = unpackTileIfExists(xMinInPatch + 8, yMinInPatch + 12, PATCH_INDEX_TILE_X, PATCH_INDEX_TILE_Y);
+        if(indexWord == ERASED_SYMBOL) {
+            return -1;
+        }
+        patchMetadata.setMetadataWord(metadataWord);
+        if(patchMetadata.version == COMPACT_INDEX_VERSION) {
+            return indexWord;
+        }
+        int patchIndexExtension = unpackTileIfExists(xMinInPatch + 4, yMinInPatch + 12, PATCH_INDEX_EXTENSION_TILE_X, PATCH_INDEX_EXTENSION_TILE_Y);
+        if(patchIndexExtension == ERASED_SYMBOL) {
+            return -1;
+        }
+        if(patchMetadata.version != EXTENDED_INDEX_VERSION) {
+            patchMetadata.codewordLengthCode = patchIndexExtension >>> CODEWORD_LENGTH_CODE_SHIFT;
+        }
+        if(patchMetadata.version == MULTIPLEXED_VERSION) {
+            patchMetadata.streamId = (patchIndexExtension >>> STREAM_ID_SHIFT) & MAX_STREAM_ID;
+        }
+        return indexWord | (patchIndexExtension << TILE_PAYLOAD_SIZE);
+    }
+    
+    /**
+     * Returns the patch index held by <code>indexWord</code> in format
+     * <code>version</code>, or -1 if it marks an unused patch.
+     */
+    private static int patchIndex(int indexWord, int version) {
+        switch(version) {
+        case COMPACT_INDEX_VERSION:
+            return (indexWord == INVALID_PATCH_INDEX) ? -1 : indexWord;
+        case EXTENDED_INDEX_VERSION:
+            return (indexWord == EXTENDED_INVALID_PATCH_INDEX) ? -1 : indexWord;
+        case CODEWORD_LENGTH_VERSION:
+            int patchIndex = indexWord & CODEWORD_LENGTH_INVALID_PATCH_INDEX;
+            return (patchIndex == CODEWORD_LENGTH_INVALID_PATCH_INDEX) ? -1 : patchIndex;
+        default:
+            patchIndex = indexWord & MULTIPLEXED_INVALID_PATCH_INDEX;
+            return (patchIndex == MULTIPLEXED_INVALID_PATCH_INDEX) ? -1 : patchIndex;
+        }
     }
     
     private int unpackTile(int x, int y, int xTile, int yTile) {
@@ -299,11 +1573,186 @@ public class RStegCodec {
      * </code> in packed format.
      */
     private int guessAlignment() {
-        int tileAlignment = indexOfMax(calcTileAlignmentConfidences());
+        return guessAlignments(1)[0];
+    }
+    
+    /**
+     * Returns up to <code>maxCount</code> alignments of the patches in packed
+     * format, most likely first. The first is the most likely one; the others
+     * combine the tile and patch alignments whose confidence is within
+     * sampling noise of the highest.
+     */
+    private int[] guessAlignments(int maxCount) {
+        int rowStep = alignmentRowStep();
+        float[] tileConfidences = calcTileAlignmentConfidences(rowStep);
+        if(rowStep > 1 && !standsOut(tileConfidences, alignmentSampleCount(rowStep))) {
+            /*
+             * The tiles of a message encoded sparsely may cover too little of
+             * the bitfield for their parity to stand out in a sample.
+             */
+            rowStep = 1;
+            tileConfidences = calcTileAlignmentConfidences(rowStep);
+        }
+        long sampleCount = alignmentSampleCount(rowStep);
+        if(!standsOut(tileConfidences, sampleCount)) {
+            /*
+             * So few tiles hold a message, as when a short one is encoded
+             * sparsely into a large bitfield, that their parity is lost in
+             * that of the cover. Whole patches of tiles with even parity
+             * still stand out.
+             */
+            return alignmentsByEvenPatches(maxCount);
+        }
+        
+        /*
+         * With the right tile alignment, the alignment words usually make the
+         * patch alignment stand out, so the best patch alignment of every
+         * likely tile alignment is tried before the runners-up of any.
+         */
+        int[] tileAlignments = indicesByDecreasingValue(tileConfidences);
+        int tileCount = 1;
+        while(tileCount < Math.min(maxCount, tileAlignments.length)
+                && isWithinNoise(tileConfidences[tileAlignments[0]], tileConfidences[tileAlignments[tileCount]], sampleCount)) {
+            tileCount++;
+        }
+        float[][] patchConfidences = new float[tileCount][];
+        int[][] patchAlignments = new int[tileCount][];
+        for(int i = 0; i < tileCount; i++) {
+            patchConfidences[i] = calcPatchAlignmentConfidences(tileAlignments[i] & 0b11, (tileAlignments[i] >>> 2) & 0b11, rowStep);
+            patchAlignments[i] = indicesByDecreasingValue(patchConfidences[i]);
+        }
+        int[] alignments = new int[maxCount];
+        int count = 0;
+        for(int rank = 0; rank < PATCH_SIZE_TILES && count < maxCount; rank++) {
+            for(int i = 0; i < tileCount && count < maxCount; i++) {
+                float[] confidences = patchConfidences[i];
+                int patchAlignment = patchAlignments[i][rank];
+                if(rank > 0 && !isWithinNoise(confidences[patchAlignments[i][0]], confidences[patchAlignment], sampleCount)) {
+                    continue;
+                }
+                int xOffset = (tileAlignments[i] & 0b11) + ((patchAlignment & 0b11) << 2);
+                int yOffset = ((tileAlignments[i] >>> 2) & 0b11) + (((patchAlignment >>> 2) & 0b11) << 2);
+                alignments[count++] = (yOffset << 4) | xOffset;
+            }
+        }
+        return Arrays.copyOf(alignments, count);
+    }
+    
+    /**
+     * Returns up to <code>maxCount</code> alignments of the patches in packed
+     * format, ranked by the number of whole patches all of whose tiles have
+     * even parity. Every tile the encoder writes does, but a patch of the
+     * cover only does by chance, once in 2^16, so even a few patches holding
+     * a message make their alignment stand out. The others returned have a
+     * count within sampling noise of the highest.
+     */
+    private int[] alignmentsByEvenPatches(int maxCount) {
+        int width = targetBitfield.getWidth();
+        int height = targetBitfield.getHeight();
+        int widthInElements = targetBitfield.widthInElements;
+        float[] evenPatchCounts = new float[PATCH_WIDTH_BITS * PATCH_WIDTH_BITS];
+        
+        /*
+         * Bit x of oddTileRows[y % PATCH_WIDTH_BITS] is set if the tile whose
+         * top left corner lies at (x, y) has odd parity, and bit x of
+         * oddPatchRow if any tile of the patch there does, which gives every
+         * alignment at once. Only the last rows of tiles are kept.
+         */
+        int[][] oddTileRows = new int[PATCH_WIDTH_BITS][widthInElements];
+        int[] oddPatchRow = new int[widthInElements];
+        for(int y = 0; y <= height - TILE_WIDTH; y++) {
+            int[] oddTiles = oddTileRows[y % PATCH_WIDTH_BITS];
+            for(int i = 0; i < widthInElements; i++) {
+                int element = 0;
+                for(int row = 0; row < TILE_WIDTH; row++) {
+                    element ^= targetBitfield.data[targetBitfield.posToIndex(0, y + row) + i];
+                }
+                oddTiles[i] = element;
+            }
+            xorShifted(oddTiles, 1);
+            xorShifted(oddTiles, 2);
+            
+            int yMinInPatch = y + TILE_WIDTH - PATCH_WIDTH_BITS;
+            if(yMinInPatch < 0) {
+                continue;
+            }
+            Arrays.fill(oddPatchRow, 0);
+            for(int yTile = 0; yTile < PATCH_WIDTH_TILES; yTile++) {
+                int[] tileRow = oddTileRows[(yMinInPatch + yTile * TILE_WIDTH) % PATCH_WIDTH_BITS];
+                for(int i = 0; i < widthInElements; i++) {
+                    oddPatchRow[i] |= tileRow[i];
+                }
+            }
+            orShifted(oddPatchRow, TILE_WIDTH);
+            orShifted(oddPatchRow, 2 * TILE_WIDTH);
+            
+            int countOffset = (yMinInPatch % PATCH_WIDTH_BITS) * PATCH_WIDTH_BITS;
+            for(int i = 0; i < widthInElements; i++) {
+                int evenPatches = ~oddPatchRow[i];
+                while(evenPatches != 0) {
+                    int bitIndex = Integer.numberOfTrailingZeros(evenPatches);
+                    evenPatches &= evenPatches - 1;
+                    int xMinInPatch = (i << Bitfield2D.BITS_PER_ELEMENT_SHIFT) + bitIndex;
+                    if(xMinInPatch > width - PATCH_WIDTH_BITS) {
+                        break;
+                    }
+                    evenPatchCounts[countOffset + xMinInPatch % PATCH_WIDTH_BITS]++;
+                }
+            }
+        }
+        
+        // The count of a wrong alignment is about Poisson distributed
+        int[] alignments = indicesByDecreasingValue(evenPatchCounts);
+        float highestCount = evenPatchCounts[alignments[0]];
+        int count = 1;
+        while(count < Math.min(maxCount, alignments.length)
+                && highestCount - evenPatchCounts[alignments[count]] < ALIGNMENT_MIN_MARGIN_SIGMAS * Math.sqrt(highestCount)) {
+            count++;
+        }
+        return Arrays.copyOf(alignments, count);
+    }
+    
+    /**
+     * Sets bit x of the row of bits <code>elements</code> to the exclusive
+     * or of bits x and x + <code>shift</code>, for every x.
+     */
+    private static void xorShifted(int[] elements, int shift) {
+        for(int i = 0; i < elements.length; i++) {
+            elements[i] ^= shiftedElement(elements, i, shift);
+        }
+    }
+    
+    /**
+     * Sets bit x of the row of bits <code>elements</code> to the or of bits
+     * x and x + <code>shift</code>, for every x.
+     */
+    private static void orShifted(int[] elements, int shift) {
+        for(int i = 0; i < elements.length; i++) {
+            elements[i] |= shiftedElement(elements, i, shift);
+        }
+    }
+    
+    /**
+     * Returns element <code>i</code> of the row of bits <code>elements
+     * </code> moved towards bit 0 by <code>shift</code> bits, with the bits
+     * of the next element, which is not yet changed, moved in.
+     */
+    private static int shiftedElement(int[] elements, int i, int shift) {
+        int next = (i + 1 < elements.length) ? elements[i + 1] : 0;
+        return (elements[i] >>> shift) | (next << (Bitfield2D.BITS_PER_ELEMENT - shift));
+    }
+    
+    /**
+     * Returns the alignment of patches with the tile alignment of highest
+     * confidence in <code>tileConfidences</code>, sampling every <code>
+     * rowStep</code>th row of tiles.
+     */
+    private int guessAlignment(float[] tileConfidences, int rowStep) {
+        int tileAlignment = indexOfMax(tileConfidences);
         int xOffset = tileAlignment & 0b11;
         int yOffset = (tileAlignment >>> 2) & 0b11;
         
-        int patchAlignment = indexOfMax(calcPatchAlignmentConfidences(xOffset, yOffset));
+        int patchAlignment = indexOfMax(calcPatchAlignmentConfidences(xOffset, yOffset, rowStep));
         xOffset += (patchAlignment & 0b11) << 2;
         yOffset += ((patchAlignment >>> 2) & 0b11) << 2;
         
@@ -315,14 +1764,14 @@ public class RStegCodec {
      * possible alignment of tiles within <code>bitfield</code>, based on the
      * proportion of correct parities.
      */
-    private float[] calcTileAlignmentConfidences() {
+    private float[] calcTileAlignmentConfidences(int rowStep) {
         float[] confidences = new float[TILE_SIZE];
         
         for(int yOffset = 0; yOffset < TILE_WIDTH; yOffset++) {
             for(int xOffset = 0; xOffset < TILE_WIDTH; xOffset++) {
                 int count = 0;
                 int total = 0;
-                for(int y = yOffset; y <= targetBitfield.getHeight() - TILE_WIDTH; y += TILE_WIDTH) {
+                for(int y = yOffset; y <= targetBitfield.getHeight() - TILE_WIDTH; y += TILE_WIDTH * rowStep) {
                     for(int x = xOffset; x <= targetBitfield.getWidth() - TILE_WIDTH; x += TILE_WIDTH) {
                         int bits = targetBitfield.getBits(x, y, TILE_SIZE, TILE_WIDTH);
                         if(calcParity(bits) == 0) {
@@ -344,12 +1793,12 @@ public class RStegCodec {
      * that the first whole tile lies at coordinates (<code>xOffset</code>,
      * <code>yOffset</code>).
      */
-    private float[] calcPatchAlignmentConfidences(int xOffset, int yOffset) {
+    private float[] calcPatchAlignmentConfidences(int xOffset, int yOffset, int rowStep) {
         int[] counts = new int[PATCH_SIZE_TILES];
         int total = 0;
         
         int ym = 0;
-        for(int y = yOffset; y <= targetBitfield.getHeight() - TILE_WIDTH; y += TILE_WIDTH) {
+        for(int y = yOffset; y <= targetBitfield.getHeight() - TILE_WIDTH; y += TILE_WIDTH * rowStep) {
             int xm = 0;
             for(int x = xOffset; x <= targetBitfield.getWidth() - TILE_WIDTH; x += TILE_WIDTH) {
                 int alignmentCode = targetBitfield.getBits(x, y + 3, 4);
@@ -359,7 +1808,7 @@ public class RStegCodec {
                 total++;
                 xm = (xm + 1) & 0b11;
             }
-            ym = (ym + 1) & 0b11;
+            ym = (ym + rowStep) & 0b11;
         }
         
         float[] confidences = new float[counts.length];
@@ -369,6 +1818,55 @@ public class RStegCodec {
         return confidences;
     }
     
+    /**
+     * Returns the number of tile rows to advance between the rows sampled
+     * when estimating the alignment. Progressive decoding samples about
+     * <code>ALIGNMENT_SAMPLE_TILES</code> tiles, which is plenty to tell the
+     * alignments apart; otherwise every row is used.
+     */
+    private int alignmentRowStep() {
+        return progressiveDecoding ? sampledAlignmentRowStep() : 1;
+    }
+    
+    /**
+     * Returns the row step that samples about <code>ALIGNMENT_SAMPLE_TILES
+     * </code> tiles.
+     */
+    private int sampledAlignmentRowStep() {
+        long tileCount = (long)(targetBitfield.getWidth() / TILE_WIDTH) * (targetBitfield.getHeight() / TILE_WIDTH);
+        return (int)Math.max(1, (tileCount + ALIGNMENT_SAMPLE_TILES - 1) / ALIGNMENT_SAMPLE_TILES);
+    }
+    
+    /**
+     * Returns about how many tiles are sampled for each alignment when every
+     * <code>rowStep</code>th row of tiles is used.
+     */
+    private long alignmentSampleCount(int rowStep) {
+        int heightTiles = targetBitfield.getHeight() / TILE_WIDTH;
+        return (long)(targetBitfield.getWidth() / TILE_WIDTH) * MathUtils.ceilDivide(heightTiles, rowStep);
+    }
+    
+    /**
+     * Returns true if the highest of <code>confidences</code>, proportions of
+     * <code>sampleCount</code> tiles each, beats the others by several times
+     * the standard deviation of a proportion of random tiles.
+     */
+    private static boolean standsOut(float[] confidences, long sampleCount) {
+        float[] sorted = confidences.clone();
+        Arrays.sort(sorted);
+        return !isWithinNoise(sorted[sorted.length - 1], sorted[sorted.length - 2], sampleCount);
+    }
+    
+    /**
+     * Returns true if <code>confidence</code> falls short of <code>
+     * highestConfidence</code>, both proportions of <code>sampleCount</code>
+     * tiles, by less than several times the standard deviation of a
+     * proportion of random tiles.
+     */
+    private static boolean isWithinNoise(float highestConfidence, float confidence, long sampleCount) {
+        return (highestConfidence - confidence) * Math.sqrt(sampleCount) < ALIGNMENT_MIN_MARGIN_SIGMAS * 0.5;
+    }
+    
     private boolean tileExists(int x, int y) {
         return (x >= 0) && (x <= targetBitfield.getWidth() - TILE_WIDTH) && (y >= 0) && (y <= targetBitfield.getHeight() - TILE_WIDTH);
     }
@@ -413,6 +1911,24 @@ public class RStegCodec {
         return indexOfMax;
     }
     
+    /**
+     * Returns the indices of <code>values</code> ordered by decreasing value,
+     * equal values by increasing index, so the first is the one <code>
+     * indexOfMax</code> returns.
+     */
+    private static int[] indicesByDecreasingValue(float[] values) {
+        int[] indices = new int[values.length];
+        for(int i = 0; i < values.length; i++) {
+            int j = i;
+            while(j > 0 && values[indices[j - 1]] < values[i]) {
+                indices[j] = indices[j - 1];
+                j--;
+            }
+            indices[j] = i;
+        }
+        return indices;
+    }
+    
     static {
         Random random = new Random(SCRAMBLE_RANDOM_SEED);
         for(int i = 0; i < SCRAMBLE_MASKS.length; i++) {
@@ -420,6 +1936,275 @@ public class RStegCodec {
         }
     }
     
+    /**
+     * The valid patches read by one slice of a scan: the position of their
+     * symbols in the codewords, their metadata votes and their data tile
+     * symbols, in the order they were read.
+     */
+    private static class ScannedPatches {
+        private final PatchMetadata patchMetadata = new PatchMetadata();
+        private int[] symbolIndices = new int[PROGRESS_CHECK_INTERVAL];
+        private int[] firstCodewordIndices = new int[PROGRESS_CHECK_INTERVAL];
+        private int[] metadataVotes = new int[PROGRESS_CHECK_INTERVAL];
+        private int[] symbols = new int[PROGRESS_CHECK_INTERVAL * DATA_TILES_PER_PATCH];
+        private int count;
+        
+        /**
+         * Records a patch holding symbol <code>symbolIndex</code> of the
+         * codewords starting at <code>firstCodewordIndex</code>, and returns
+         * the offset in <code>getSymbols()</code> to store the symbols of its
+         * <code>DATA_TILES_PER_PATCH</code> data tiles at, <code>
+         * ERASED_SYMBOL</code> for unreadable or missing tiles.
+         */
+        public int add(int symbolIndex, int firstCodewordIndex, int metadataVote) {
+            if(count == symbolIndices.length) {
+                symbolIndices = Arrays.copyOf(symbolIndices, count * 2);
+                firstCodewordIndices = Arrays.copyOf(firstCodewordIndices, count * 2);
+                metadataVotes = Arrays.copyOf(metadataVotes, count * 2);
+                symbols = Arrays.copyOf(symbols, count * 2 * DATA_TILES_PER_PATCH);
+            }
+            symbolIndices[count] = symbolIndex;
+            firstCodewordIndices[count] = firstCodewordIndex;
+            metadataVotes[count] = metadataVote;
+            return count++ * DATA_TILES_PER_PATCH;
+        }
+        
+        public int[] getSymbols() {
+            return symbols;
+        }
+        
+        public void clear() {
+            count = 0;
+        }
+        
+        /**
+         * Adds the recorded symbols to the matrices for the codeword lengths
+         * of their patches and the recorded metadata to the vote.
+         */
+        public void mergeInto(CodewordMatrices codewordMatrices, IntModeFinder metadataModeFinder) {
+            for(int i = 0; i < count; i++) {
+                metadataModeFinder.add(metadataVotes[i]);
+                patchMetadata.setVote(metadataVotes[i]);
+                int symbolIndex = symbolIndices[i];
+                int firstCodewordIndex = firstCodewordIndices[i];
+                if(firstCodewordIndex >= codewordMatrices.getCodewordLimit(patchMetadata.codewordLengthCode)) {
+                    continue;
+                }
+                CodewordMatrix codewordMatrix = codewordMatrices.get(patchMetadata.codewordLengthCode);
+                int symbolOffset = i * DATA_TILES_PER_PATCH;
+                for(int tileIndex = 0; tileIndex < DATA_TILES_PER_PATCH; tileIndex++) {
+                    int symbol = symbols[symbolOffset + tileIndex];
+                    if(symbol != ERASED_SYMBOL) {
+                        codewordMatrix.put(firstCodewordIndex + tileIndex, symbolIndex, symbol);
+                    }
+                }
+            }
+            count = 0;
+        }
+    }
+    
+    /**
+     * The codeword matrices of a scan, one per codeword length code, created
+     * when the first patch with that length is merged. Each is sized for as
+     * many groups as there are patch positions in the bitfield; patches from
+     * beyond a cropped edge make it grow.
+     * <p>
+     * A message can only be corrected if at least the share of each codeword
+     * holding message symbols survives cropping, which is a quarter at the
+     * lowest data rate, so the image was at most <code>MAX_CROP_FACTOR
+     * </code> times as large. Patches with higher indices are strays, such
+     * as patterns in the cover that happen to pass the checks when encoding
+     * sparsely, and are dropped so that they cannot make the matrices grow
+     * without bound.
+     */
+    private static class CodewordMatrices {
+        private final CodewordMatrix[] codewordMatrices = new CodewordMatrix[16];
+        private final int positionCount;
+        
+        public CodewordMatrices(int positionCount) {
+            this.positionCount = positionCount;
+        }
+        
+        /**
+         * Returns the number of codewords with length code <code>
+         * codewordLengthCode</code> that can belong to a message.
+         */
+        public int getCodewordLimit(int codewordLengthCode) {
+            return MathUtils.ceilDivide(positionCount * MAX_CROP_FACTOR, codewordLength(codewordLengthCode)) * DATA_TILES_PER_PATCH;
+        }
+        
+        public CodewordMatrix get(int codewordLengthCode) {
+            if(codewordMatrices[codewordLengthCode] == null) {
+                int codewordLength = codewordLength(codewordLengthCode);
+                int groupCount = MathUtils.ceilDivide(positionCount, codewordLength);
+                codewordMatrices[codewordLengthCode] = new CodewordMatrix(codewordLength, groupCount * DATA_TILES_PER_PATCH);
+            }
+            return codewordMatrices[codewordLengthCode];
+        }
+    }
+    
+    /**
+     * Decides when a progressive scan has read enough patches. The length
+     * word in the first codeword determines how many codewords the message
+     * has and how long they are; each of them must then have enough symbols
+     * to be corrected even if some of those symbols are wrong.
+     */
+    private class DecodeProgress {
+        private final PatchMetadata patchMetadata = new PatchMetadata();
+        private int vote = -1;
+        private ErrorCorrectionLevel ecLevel;
+        private int codewordLength;
+        private PacketLayout packetLayout;
+        private int[] firstPacket;
+        private int firstCodewordSymbolCount;
+        
+        public boolean isComplete(CodewordMatrices codewordMatrices, IntModeFinder metadataModeFinder) {
+            if(!metadataModeFinder.hasMode() || metadataModeFinder.getMargin() < MIN_METADATA_VOTE_MARGIN) {
+                return false;
+            }
+            patchMetadata.setVote(metadataModeFinder.getMode());
+            if(patchMetadata.version > VERSION) {
+                return false;
+            }
+            if(metadataModeFinder.getMode() != vote) {
+                vote = metadataModeFinder.getMode();
+                ecLevel = ErrorCorrectionLevel.values()[patchMetadata.ecLevelId];
+                codewordLength = codewordLength(patchMetadata.codewordLengthCode);
+                packetLayout = null;
+                firstCodewordSymbolCount = 0;
+            }
+            CodewordMatrix codewordMatrix = codewordMatrices.get(patchMetadata.codewordLengthCode);
+            
+            if(packetLayout == null) {
+                if(codewordMatrix.getSymbolCount(0) == firstCodewordSymbolCount) {
+                    return false;
+                }
+                firstCodewordSymbolCount = codewordMatrix.getSymbolCount(0);
+                ReedSolomon rsCode = getReedSolomon(ecLevel, codewordLength);
+                int groupSize = dataTilesPerPatch(patchMetadata.version);
+                int[] packet = RStegDecoderInputStream.decodeFirstPacket(rsCode, codewordMatrix, groupSize);
+                if(packet == null) {
+                    return false;
+                }
+                firstPacket = packet;
+                packetLayout = RStegDecoderInputStream.readPacketLayout(packet, rsCode.getMessageSize(), groupSize);
+            }
+            for(int codewordIndex = 1; codewordIndex < packetLayout.getPacketCount(); codewordIndex++) {
+                if(!isCorrectable(codewordMatrix, codewordIndex)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Returns true if enough symbols of codeword <code>codewordIndex
+         * </code> have been received to correct as many wrong ones as a
+         * quarter of the full correction capacity of the code.
+         */
+        private boolean isCorrectable(CodewordMatrix codewordMatrix, int codewordIndex) {
+            int checkSymbolCount = codewordLength - ecLevel.getMessageSymbolCount(codewordLength);
+            return codewordMatrix.getSymbolCount(codewordIndex) >= packetLayout.getPacketLength(codewordIndex) + checkSymbolCount / 4;
+        }
+    }
+    
+    /**
+     * Determines how the bit flipped to give a tile even parity is chosen.
+     * The decoder treats the alignment word of every tile as noise, so the
+     * choice does not affect decoding.
+     */
+    public static enum ParityMode {
+        /**
+         * The choices are drawn from a single pseudorandom sequence, in patch
+         * order, so patches must be packed one after another.
+         */
+        SEQUENTIAL,
+        /**
+         * Each choice is a hash of the patch and tile index, so patches can
+         * be packed independently, in any order.
+         */
+        PER_PATCH;
+    }
+    
+    /**
+     * Chooses which bit of the alignment word to flip in tiles with odd
+     * parity, as one of 4 indices.
+     */
+    static class ParitySource {
+        private final Random random;
+        
+        private ParitySource(Random random) {
+            this.random = random;
+        }
+        
+        public int nextFlipIndex(int patchIndex, int tileIndex) {
+            if(random != null) {
+                return random.nextInt(4);
+            }
+            long counter = (long)patchIndex * PATCH_SIZE_TILES + tileIndex;
+            return (int)MathUtils.mix64(PARITY_RANDOM_SEED + counter * MathUtils.GOLDEN_GAMMA) & 0b11;
+        }
+    }
+    
+    /**
+     * The packets of an augmented message, stored back to back in one symbol
+     * array as laid out by <code>packetLayout</code>.
+     */
+    private static class MessagePackets {
+        private final int[] symbols;
+        private final PacketLayout packetLayout;
+        
+        public MessagePackets(int[] symbols, PacketLayout packetLayout) {
+            this.symbols = symbols;
+            this.packetLayout = packetLayout;
+        }
+        
+        /**
+         * Returns whether packet number <code>packetIndex</code> is the same
+         * in <code>other</code>, which must have the same layout.
+         */
+        public boolean packetEquals(int packetIndex, MessagePackets other) {
+            int offset = packetLayout.getPacketOffset(packetIndex);
+            for(int i = offset; i < offset + packetLayout.getPacketLength(packetIndex); i++) {
+                if(symbols[i] != other.symbols[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Remembers the packets last encoded into the target bitfield, and the
+     * settings they were encoded with, so that <code>update</code> can tell
+     * which codewords changed.
+     */
+    private class EncodedMessage {
+        private final Bitfield2D bitfield = targetBitfield;
+        private final ErrorCorrectionLevel ecLevel = RStegCodec.this.ecLevel;
+        private final int codewordLength = RStegCodec.this.codewordLength;
+        private final int version = getFormatVersion();
+        private final MessagePackets packets;
+        private final int patchCount;
+        
+        public EncodedMessage(MessagePackets packets, int patchCount) {
+            this.packets = packets;
+            this.patchCount = patchCount;
+        }
+        
+        /**
+         * Returns whether <code>newPackets</code> would be encoded into the
+         * same patches and tiles as the remembered packets.
+         */
+        public boolean hasLayoutOf(MessagePackets newPackets) {
+            if(bitfield != targetBitfield || ecLevel != RStegCodec.this.ecLevel || codewordLength != RStegCodec.this.codewordLength
+                    || version != getFormatVersion()) {
+                return false;
+            }
+            return newPackets.packetLayout.equals(packets.packetLayout);
+        }
+    }
+    
     public static enum ErrorCorrectionLevel {
         LOW(0.875f),
         MEDIUM(0.75f),
@@ -427,18 +2212,28 @@ public class RStegCodec {
         VERY_HIGH(0.25f);
         
         private final float dataRate;
-        private final int messageSymbolCount;
         
         private ErrorCorrectionLevel(float dataRate) {
             this.dataRate = dataRate;
-            this.messageSymbolCount = (int)(CODEWORD_LENGTH * dataRate);
+        }
+        
+        /**
+         * Returns the number of message symbols in a codeword of <code>
+         * codewordLength</code> symbols. Packets hold whole bytes, so the
+         * count is rounded down to an even number.
+         */
+        int getMessageSymbolCount(int codewordLength) {
+            return (int)(codewordLength * dataRate) & ~1;
         }
     }
     
     private static class PatchMetadata {
+        private final CRC metadataCRC = new CRC(METADATA_CRC_POLY, METADATA_CRC_DEGREE);
         int version;// 2 bits, meta tile
         int ecLevelId;// 2 bits, meta tile
         int checksum;// 8 bits, meta tile
+        int codewordLengthCode;// 4 bits, index extension tile in versions 2 and 3
+        int streamId;// 4 bits, index extension tile in version 3
         
         public int getMetadataWord() {
             int metadataWord = version;
@@ -447,21 +2242,45 @@ public class RStegCodec {
             return metadataWord;
         }
         
+        /**
+         * Sets the fields from the metadata tile. The codeword length code
+         * is reset to that of the default length, and the stream ID to 0.
+         */
         public void setMetadataWord(int metadataWord) {
             version = metadataWord & 0b11;
             ecLevelId = (metadataWord >>> 2) & 0b11;
             checksum = (metadataWord >>> 4) & 0b11111111;
+            codewordLengthCode = 0;
+            streamId = 0;
+        }
+        
+        /**
+         * Returns the fields that patches vote on: the version, the error
+         * correction level and the codeword length code.
+         */
+        public int getVote() {
+            return version | (ecLevelId << 2) | (codewordLengthCode << 4);
+        }
+        
+        public void setVote(int vote) {
+            setMetadataWord(vote & 0b1111);
+            codewordLengthCode = vote >>> 4;
         }
         
-        public boolean checksumValid(int patchIndex) {
-            return checksum == calcChecksum(patchIndex);
+        /**
+         * Returns true if the checksum matches <code>indexWord</code>, the
+         * patch index tile with the extension tile, if any, in its upper
+         * bits.
+         */
+        public boolean checksumValid(int indexWord) {
+            return checksum == calcChecksum(indexWord);
         }
         
-        public int calcChecksum(int patchIndex) {
-            METADATA_CRC.reset();
-            METADATA_CRC.update((byte)version);
-            METADATA_CRC.update((byte)ecLevelId);
-            return METADATA_CRC.updateWithInt(patchIndex);
+        public int calcChecksum(int indexWord) {
+            metadataCRC.reset();
+            metadataCRC.update((byte)version);
+            metadataCRC.update((byte)ecLevelId);
+            return metadataCRC.updateWithInt(indexWord);
         }
     }
 }
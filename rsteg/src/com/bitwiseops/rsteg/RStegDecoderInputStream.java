@@ -0,0 +1,399 @@
+package com.bitwiseops.rsteg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the message hidden in the target bitfield of an <code>RStegCodec
+ * </code>. Codewords are error corrected one at a time, in order, as their
+ * bytes are requested, so the start of a long message can be consumed while
+ * the rest is still being decoded.
+ * <p>
+ * The length word tells how the message is split into packets, see <code>
+ * PacketLayout</code>. Since the first codeword may itself be shortened, its
+ * length is found by trial, see <code>decodeFirstPacket</code>.
+ * <p>
+ * The checksum is verified incrementally. If it does not match, the read that
+ * reaches the end of the message fails with an <code>IOException</code> whose
+ * cause is a <code>CodecException</code>, so a message is only known to be
+ * intact once the end of the stream has been reached.
+ * <p>
+ * A message that was compressed when encoding, as told by its length word, is
+ * inflated as it is read. Like the message as stored, it may inflate to at
+ * most <code>RStegCodec.DATA_MAX_LENGTH</code> bytes, so that a damaged or
+ * crafted carrier cannot inflate to more than the encoder would accept.
+ * <p>
+ * The codewords may come from a progressive scan that read only part of the
+ * patches. If one of them cannot be corrected, the rest of the patches are
+ * scanned once, and the codeword is tried again with all of its symbols.
+ */
+public class RStegDecoderInputStream extends InputStream {
+    private static final int INFLATER_INPUT_SIZE = 4096;
+    private static final int MAX_LEFT_OUT_SYMBOLS = 16;// stray symbols past a shortened first codeword
+    
+    private final ReedSolomon rsCode;
+    private final int groupSize;
+    private final int checkSymbolCount;
+    private final RStegPacketInputStream packetInputStream = new RStegPacketInputStream();
+    private CodewordMatrix codewordMatrix;
+    private FullScan fullScan;// null once the patches have all been scanned
+    private final CRC dataCRC = new CRC(RStegCodec.DATA_CRC_POLY, RStegCodec.DATA_CRC_DEGREE);
+    private PacketLayout packetLayout;
+    private int nextCodewordIndex;
+    private int length = -1;
+    private int remaining;
+    private Inflater inflater;// null unless the message is compressed
+    private byte[] inflaterInput;
+    private long inflatedLength;
+    private boolean closed;
+    
+    /**
+     * Scans all patches of the bitfield the codewords come from.
+     */
+    static interface FullScan {
+        /**
+         * Returns the codewords read from all patches, or null if those
+         * cannot take the place of the codewords of the stream.
+         */
+        public CodewordMatrix scan() throws CodecException;
+    }
+    
+    /**
+     * Constructs a stream over the codewords in <code>codewordMatrix</code>,
+     * in groups of <code>groupSize</code>. If the first codeword has already
+     * been corrected by <code>decodeFirstPacket</code>, its message symbols
+     * can be passed as <code>firstPacket</code>; otherwise it is null. If
+     * only part of the patches were scanned, <code>fullScan</code> scans the
+     * rest; otherwise it is null.
+     */
+    RStegDecoderInputStream(ReedSolomon rsCode, CodewordMatrix codewordMatrix, int groupSize, int[] firstPacket, FullScan fullScan) {
+        this.rsCode = rsCode;
+        this.codewordMatrix = codewordMatrix;
+        this.fullScan = fullScan;
+        this.groupSize = groupSize;
+        this.checkSymbolCount = rsCode.getCodewordLength() - rsCode.getMessageSize();
+        if(firstPacket != null) {
+            packetInputStream.putPacket(firstPacket);
+            nextCodewordIndex = 1;
+        }
+    }
+    
+    /**
+     * Returns the length of the message in bytes as stored, which is its
+     * compressed length if <code>isCompressed()</code>, decoding the first
+     * codeword if necessary. Once the length is known, the remaining codewords of the
+     * message are checked for enough received symbols before any of them is
+     * corrected, so that a hopeless message fails at this point with an
+     * <code>UnrecoverableCodewordsException</code> as the cause.
+     */
+    public int getLength() throws IOException {
+        if(length < 0) {
+            if(nextCodewordIndex == 0) {
+                decodeFirstCodeword();
+            }
+            dataCRC.reset();
+            int lengthWord = 0;
+            for(int i = 0; i < 4; i++) {
+                lengthWord = (lengthWord << 8) | readPacketByte();
+            }
+            packetLayout = newPacketLayout(lengthWord, rsCode.getMessageSize(), groupSize);
+            if(packetLayout == null) {
+                throw new IOException(new CodecException("Decoding failed."));
+            }
+            checkSymbolCounts(nextCodewordIndex, packetLayout.getPacketCount());
+            dataCRC.updateWithInt(lengthWord);
+            length = lengthWord & ~RStegCodec.LENGTH_WORD_FLAGS;
+            remaining = length;
+            if((lengthWord & RStegCodec.COMPRESSED_FLAG) != 0) {
+                inflater = new Inflater();
+                inflaterInput = new byte[INFLATER_INPUT_SIZE];
+            }
+        }
+        return length;
+    }
+    
+    /**
+     * Returns whether the message was compressed when encoding, in which
+     * case the bytes read are inflated and their number is not known in
+     * advance.
+     */
+    public boolean isCompressed() throws IOException {
+        getLength();
+        return inflater != null;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == 1) ? b[0] & 0xff : -1;
+    }
+    
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed.");
+        }
+        getLength();
+        if(inflater != null) {
+            return readInflated(b, off, len);
+        }
+        return readStored(b, off, len);
+    }
+    
+    /**
+     * Reads up to <code>len</code> bytes of the message as stored, updating
+     * the checksum.
+     */
+    private int readStored(byte[] b, int off, int len) throws IOException {
+        if(remaining == 0) {
+            return -1;
+        }
+        int count = Math.min(len, remaining);
+        int readCount = 0;
+        while(readCount < count) {
+            int n = packetInputStream.read(b, off + readCount, count - readCount);
+            if(n <= 0) {
+                decodeNextPacket();
+            } else {
+                readCount += n;
+            }
+        }
+        dataCRC.update(b, off, count);
+        remaining -= count;
+        if(remaining == 0) {
+            verifyChecksum();
+        }
+        return count;
+    }
+    
+    /**
+     * Reads up to <code>len</code> bytes of the compressed message, inflating
+     * as much of the stored message as needed. The stored message must end
+     * exactly where the compressed data does.
+     */
+    private int readInflated(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        try {
+            while(true) {
+                int count = inflater.inflate(b, off, len);
+                if(count > 0) {
+                    inflatedLength += count;
+                    if(inflatedLength > RStegCodec.DATA_MAX_LENGTH) {
+                        throw new IOException(new CodecException("Decoding failed: decompressed message too long."));
+                    }
+                    return count;
+                }
+                if(inflater.finished()) {
+                    if(remaining > 0 || inflater.getRemaining() > 0) {
+                        throw new IOException(new CodecException("Decoding failed: invalid compressed data."));
+                    }
+                    return -1;
+                }
+                if(inflater.needsDictionary() || remaining == 0) {
+                    throw new IOException(new CodecException("Decoding failed: invalid compressed data."));
+                }
+                int inputCount = readStored(inflaterInput, 0, inflaterInput.length);
+                inflater.setInput(inflaterInput, 0, inputCount);
+            }
+        } catch(DataFormatException e) {
+            throw new IOException(new CodecException("Decoding failed: invalid compressed data.", e));
+        }
+    }
+    
+    /**
+     * Returns the number of bytes that can be read without correcting
+     * another codeword, or 0 for a compressed message.
+     */
+    @Override
+    public int available() throws IOException {
+        if(closed || length < 0 || inflater != null) {
+            return 0;
+        }
+        return Math.min(remaining, packetInputStream.available());
+    }
+    
+    @Override
+    public void close() {
+        closed = true;
+        if(inflater != null) {
+            inflater.end();
+        }
+    }
+    
+    /**
+     * Fails if any of the codewords from <code>startIndex</code> up to
+     * <code>endIndex</code> has fewer received symbols than the Reed-Solomon
+     * code needs, listing all such codewords. Until the layout is known,
+     * every codeword is taken to be full length.
+     */
+    private void checkSymbolCounts(int startIndex, int endIndex) throws IOException {
+        int[] unrecoverableIndices = new int[Math.max(0, endIndex - startIndex)];
+        int unrecoverableCount = 0;
+        for(int codewordIndex = startIndex; codewordIndex < endIndex; codewordIndex++) {
+            int packetLength = (packetLayout != null) ? packetLayout.getPacketLength(codewordIndex) : rsCode.getMessageSize();
+            if(codewordMatrix.getSymbolCount(codewordIndex) < packetLength) {
+                unrecoverableIndices[unrecoverableCount++] = codewordIndex;
+            }
+        }
+        if(unrecoverableCount > 0) {
+            throw new IOException(new UnrecoverableCodewordsException(Arrays.copyOf(unrecoverableIndices, unrecoverableCount)));
+        }
+    }
+    
+    private void verifyChecksum() throws IOException {
+        int checksum = 0;
+        for(int i = 0; i < 4; i++) {
+            checksum = (checksum << 8) | readPacketByte();
+        }
+        if(dataCRC.getValue() != checksum) {
+            throw new IOException(new CodecException("Decoding failed: incorrect data checksum."));
+        }
+    }
+    
+    private int readPacketByte() throws IOException {
+        int value = packetInputStream.read();
+        if(value < 0) {
+            decodeNextPacket();
+            value = packetInputStream.read();
+        }
+        return value;
+    }
+    
+    private void decodeFirstCodeword() throws IOException {
+        int[] packet = decodeFirstPacket(rsCode, codewordMatrix, groupSize);
+        if(packet == null) {
+            /*
+             * Without the length word the extent of the message is unknown,
+             * so report every codeword received in too poor a state.
+             */
+            checkSymbolCounts(0, Math.max(codewordMatrix.getCodewordCount(), 1));
+            throw new IOException(new UnrecoverableCodewordsException(new int[] {0}));
+        }
+        packetInputStream.putPacket(packet);
+        nextCodewordIndex = 1;
+    }
+    
+    private void decodeNextPacket() throws IOException {
+        if(Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Decoding interrupted.");
+        }
+        int packetLength = packetLayout.getPacketLength(nextCodewordIndex);
+        if(codewordMatrix.getSymbolCount(nextCodewordIndex) < packetLength) {
+            checkSymbolCounts(nextCodewordIndex, nextCodewordIndex + 1);
+        }
+        int[] packet = rsCode.decodeVerified(codewordMatrix.getCodeword(nextCodewordIndex, packetLength + checkSymbolCount));
+        if(packet == null && scanFully()) {
+            packet = rsCode.decodeVerified(codewordMatrix.getCodeword(nextCodewordIndex, packetLength + checkSymbolCount));
+        }
+        if(packet == null) {
+            throw new IOException(new UnrecoverableCodewordsException(new int[] {nextCodewordIndex}));
+        }
+        packetInputStream.putPacket(packet);
+        nextCodewordIndex++;
+    }
+    
+    /**
+     * Replaces the codewords with those read from all patches, unless they
+     * were already, and returns whether they were replaced. A full scan only
+     * adds symbols, so the codewords already corrected stay valid.
+     */
+    private boolean scanFully() throws IOException {
+        if(fullScan == null) {
+            return false;
+        }
+        FullScan scan = fullScan;
+        fullScan = null;
+        try {
+            CodewordMatrix fullCodewordMatrix = scan.scan();
+            if(fullCodewordMatrix == null) {
+                return false;
+            }
+            codewordMatrix = fullCodewordMatrix;
+            return true;
+        } catch(CodecException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Corrects the first codeword in <code>codewordMatrix</code> and returns
+     * its message symbols, or null if that fails.
+     * <p>
+     * The first codeword is shortened if the whole message fits in one group,
+     * to a length that only its own length word tells. Each length from the
+     * shortest that holds every received symbol up to the longest that has
+     * enough received symbols is tried in turn, and a correction is only
+     * accepted if its length word calls for a first codeword of that length.
+     * The last received symbols usually lie near the end of the codeword, so
+     * the first try normally succeeds.
+     * <p>
+     * A stray patch, such as a pattern in the cover that happens to pass the
+     * checks, may add a symbol beyond the end of a shortened codeword. If no
+     * length holding every received symbol can be corrected, the last
+     * received symbol is left out and the shorter lengths that this allows
+     * are tried, and so on, so that a few such symbols cannot hide the
+     * message.
+     */
+    static int[] decodeFirstPacket(ReedSolomon rsCode, CodewordMatrix codewordMatrix, int groupSize) {
+        int[] codeword = codewordMatrix.getCodeword(0);
+        int checkSymbolCount = codeword.length - rsCode.getMessageSize();
+        // The first packet holds at least the length word, in 4 symbols
+        int minLength = checkSymbolCount + 4;
+        int receivedCount = codewordMatrix.getSymbolCount(0);
+        int endLength = codeword.length;
+        int position = codeword.length;
+        for(int leftOutCount = 0; leftOutCount <= MAX_LEFT_OUT_SYMBOLS && endLength >= minLength; leftOutCount++) {
+            do {
+                position--;
+            } while(position >= 0 && codeword[position] == RStegCodec.ERASED_SYMBOL);
+            int startLength = Math.max(position + 1, minLength);
+            int maxLength = Math.min(endLength, receivedCount + checkSymbolCount);
+            for(int length = startLength + (startLength - checkSymbolCount) % 2; length <= maxLength; length += 2) {
+                int[] packet = rsCode.decodeVerified(Arrays.copyOf(codeword, length));
+                if(packet != null) {
+                    PacketLayout packetLayout = readPacketLayout(packet, rsCode.getMessageSize(), groupSize);
+                    if(packetLayout != null && packetLayout.getPacketLength(0) == packet.length) {
+                        return packet;
+                    }
+                }
+            }
+            // Leave out the symbol at position from now on
+            endLength = position;
+            receivedCount--;
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the layout given by the length word at the start of <code>
+     * firstPacket</code>, or null if the length word is invalid.
+     */
+    static PacketLayout readPacketLayout(int[] firstPacket, int packetLength, int groupSize) {
+        RStegPacketInputStream packetInputStream = new RStegPacketInputStream();
+        packetInputStream.putPacket(firstPacket);
+        int lengthWord = 0;
+        for(int i = 0; i < 4; i++) {
+            lengthWord = (lengthWord << 8) | packetInputStream.read();
+        }
+        return newPacketLayout(lengthWord, packetLength, groupSize);
+    }
+    
+    /**
+     * Returns the layout of the message with <code>lengthWord</code>, or null
+     * if the length word is invalid.
+     */
+    private static PacketLayout newPacketLayout(int lengthWord, int packetLength, int groupSize) {
+        int length = lengthWord & ~RStegCodec.LENGTH_WORD_FLAGS;
+        if(length > RStegCodec.DATA_MAX_LENGTH) {
+            return null;
+        }
+        boolean shortenedTail = (lengthWord & RStegCodec.SHORTENED_TAIL_FLAG) != 0;
+        return new PacketLayout(packetLength, groupSize, length + 8, shortenedTail);
+    }
+}
@@ -0,0 +1,206 @@
+package com.bitwiseops.rsteg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes a message into the target bitfield of an <code>RStegCodec</code> as
+ * it is written, without buffering the whole message. Each packet is encoded
+ * into a codeword as soon as its group is complete, the codewords of a group
+ * being computed in parallel according to the parallelism of the codec, and
+ * then packed into the patches of the group.
+ * <p>
+ * The length word at the start of the message and the checksum at its end are
+ * only known when the stream is closed, so the first group of packets is held
+ * back until then. So is the last group, which is only packed once it is
+ * known to be the last, because its packets are shortened, see <code>
+ * PacketLayout</code>. A group is therefore packed when the first packet of
+ * the next one arrives. The packets stay in the symbol array of the packet
+ * stream until their group is packed, and are encoded where they are, so the
+ * memory used is bounded by two groups of packets and whatever is written at
+ * once, independent of the message length. The result decodes exactly like
+ * the output of <code>RStegCodec.encode(byte[], int, int)</code>.
+ * <p>
+ * If the codec is compressing, the bytes written are deflated on the fly, and
+ * the length word and checksum cover the compressed message. The message is
+ * limited to <code>RStegCodec.DATA_MAX_LENGTH</code> bytes both before and
+ * after compression.
+ */
+public class RStegEncoderOutputStream extends OutputStream {
+    private static final int LENGTH_WORD_SIZE = 4;
+    private static final int DEFLATER_OUTPUT_SIZE = 4096;
+    
+    private final RStegCodec codec;
+    private final RStegPacketOutputStream packetOutputStream;
+    private final CRC dataCRC = new CRC(RStegCodec.DATA_CRC_POLY, RStegCodec.DATA_CRC_DEGREE);
+    private final PatchPermutation patchPermutation;
+    private final RStegCodec.ParitySource paritySource;
+    private final int groupSize;
+    private final Deflater deflater;// null unless compressing
+    private final byte[] deflaterOutput;
+    private int removedPacketCount;// of the groups packed so far, all but the first
+    private long length;
+    private long inputLength;// before compression
+    private boolean closed;
+    
+    public RStegEncoderOutputStream(RStegCodec codec) throws IOException {
+        this.codec = codec;
+        this.packetOutputStream = new RStegPacketOutputStream(codec.getMessageSymbolCount());
+        this.patchPermutation = codec.newPatchPermutation();
+        this.paritySource = codec.newParitySource();
+        this.groupSize = codec.getDataTilesPerPatch();
+        if(codec.isCompressing()) {
+            this.deflater = new Deflater(RStegCodec.COMPRESSION_LEVEL);
+            this.deflaterOutput = new byte[DEFLATER_OUTPUT_SIZE];
+        } else {
+            this.deflater = null;
+            this.deflaterOutput = null;
+        }
+        
+        // Placeholder for the length word, filled in on close
+        packetOutputStream.write(new byte[LENGTH_WORD_SIZE]);
+        dataCRC.reset();
+    }
+    
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte)b}, 0, 1);
+    }
+    
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closed) {
+            throw new IOException("Stream closed.");
+        }
+        if(deflater == null) {
+            writeStored(b, off, len);
+            return;
+        }
+        if(inputLength + len > RStegCodec.DATA_MAX_LENGTH) {
+            throw new IOException(new CodecException("Too much data to encode."));
+        }
+        inputLength += len;
+        deflater.setInput(b, off, len);
+        while(!deflater.needsInput()) {
+            writeStored(deflaterOutput, 0, deflater.deflate(deflaterOutput));
+        }
+    }
+    
+    /**
+     * Writes <code>len</code> bytes of the message as stored, updating the
+     * checksum.
+     */
+    private void writeStored(byte[] b, int off, int len) throws IOException {
+        if(length + len > RStegCodec.DATA_MAX_LENGTH) {
+            throw new IOException(new CodecException("Too much data to encode."));
+        }
+        dataCRC.update(b, off, len);
+        packetOutputStream.write(b, off, len);
+        length += len;
+        packCompleteGroups(packetOutputStream.getFullPacketCount());
+    }
+    
+    /**
+     * Finishes compressing, appends the checksum, fills in the length word
+     * and packs the remaining patches, including the unused ones unless the
+     * codec is encoding sparsely.
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        
+        int lengthWord = RStegCodec.SHORTENED_TAIL_FLAG;
+        if(deflater != null) {
+            try {
+                deflater.finish();
+                while(!deflater.finished()) {
+                    writeStored(deflaterOutput, 0, deflater.deflate(deflaterOutput));
+                }
+            } finally {
+                deflater.end();
+            }
+            lengthWord |= RStegCodec.COMPRESSED_FLAG;
+        }
+        lengthWord |= (int)length;
+        CRC lengthCRC = new CRC(RStegCodec.DATA_CRC_POLY, RStegCodec.DATA_CRC_DEGREE);
+        int checksum = lengthCRC.combine(lengthCRC.updateWithInt(lengthWord), dataCRC.getValue(), length);
+        for(int i = 0; i < 4; i++) {
+            packetOutputStream.write(checksum >>> (8 * (3 - i)));
+        }
+        packCompleteGroups(packetOutputStream.getPacketCount());
+        
+        // The first packet starts the symbol array
+        for(int i = 0; i < LENGTH_WORD_SIZE; i++) {
+            RStegPacketOutputStream.putByte(packetOutputStream.getSymbols(), i, lengthWord >>> (8 * (LENGTH_WORD_SIZE - 1 - i)));
+        }
+        
+        /*
+         * The packets of the last group are shortened by reading its symbols
+         * in shorter runs, as the packets are stored back to back.
+         */
+        int packetLength = packetOutputStream.getPacketLength();
+        PacketLayout packetLayout = new PacketLayout(packetLength, groupSize, (int)length + 8, true);
+        int tailPacketLength = packetLayout.getPacketLength(packetLayout.getTailStartIndex());
+        int heldPacketCount = packetOutputStream.getPacketCount();
+        int packetCount = removedPacketCount + heldPacketCount;
+        
+        int neededPatchCount = codec.neededPatchCount(packetCount, codec.getCodewordLength() - packetLength + tailPacketLength);
+        try {
+            codec.checkCapacity(neededPatchCount);
+            if(heldPacketCount <= groupSize) {
+                packGroup(0, 0, new PacketLayout(tailPacketLength, heldPacketCount));
+            } else {
+                packGroup(0, 0, new PacketLayout(packetLength, groupSize));
+                packGroup((packetCount - 1) / groupSize, groupSize * packetLength, new PacketLayout(tailPacketLength, heldPacketCount - groupSize));
+            }
+        } catch(CodecException e) {
+            throw new IOException(e);
+        }
+        
+        codec.packUnusedPatches(neededPatchCount, patchPermutation, paritySource);
+    }
+    
+    /**
+     * Packs the groups after the first that are followed by the first of
+     * <code>packetCount</code> packets held by the packet stream, and removes
+     * their packets from it, leaving the first group and the last one.
+     */
+    private void packCompleteGroups(int packetCount) throws IOException {
+        int groupCount = (packetCount - 1) / groupSize - 1;
+        if(groupCount <= 0) {
+            return;
+        }
+        int packetLength = packetOutputStream.getPacketLength();
+        PacketLayout groupLayout = new PacketLayout(packetLength, groupSize);
+        try {
+            for(int i = 1; i <= groupCount; i++) {
+                packGroup(removedPacketCount / groupSize + i, i * groupSize * packetLength, groupLayout);
+            }
+        } catch(CodecException e) {
+            throw new IOException(e);
+        }
+        packetOutputStream.removePackets(groupSize, groupCount * groupSize);
+        removedPacketCount += groupCount * groupSize;
+    }
+    
+    /**
+     * Encodes the packets laid out by <code>packetLayout</code> from <code>
+     * offset</code> on in the symbol array of the packet stream, and packs
+     * the resulting codewords into the patches of group number <code>
+     * groupIndex</code>, as many as the codewords have symbols.
+     */
+    private void packGroup(int groupIndex, int offset, PacketLayout packetLayout) throws CodecException {
+        int firstPatchIndex = groupIndex * codec.getCodewordLength();
+        int groupPatchCount = codec.getCodewordLength() - codec.getMessageSymbolCount() + packetLayout.getPacketLength(0);
+        codec.checkCapacity(firstPatchIndex + groupPatchCount);
+        List<int[]> codewords = codec.encodePacketCodewords(packetOutputStream.getSymbols(), offset, packetLayout);
+        for(int patchIndex = firstPatchIndex; patchIndex < firstPatchIndex + groupPatchCount; patchIndex++) {
+            codec.packPatch(codec.patchSlot(patchPermutation, patchIndex), patchIndex, true, codewords, paritySource);
+        }
+    }
+}
@@ -1,23 +1,24 @@
 package com.bitwiseops.rsteg;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Queue;
 
 /**
  * Reads the contents of consecutive packets as a stream of bytes. Groups of two
  * 12-bit symbols are unpacked into groups of three bytes.
+ * <p>
+ * The symbols of the packets that have been put are kept back to back in a
+ * single array, from which whole byte groups are unpacked at once.
  */
 public class RStegPacketInputStream extends InputStream {
-    private final Queue<int[]> packets = new ArrayDeque<int[]>();
+    private int[] symbols = new int[0];
+    private int symbolCount;
     private int byteIndex;
     
     @Override
-    public int read() throws IOException {
-        int available = requestAvailable(1);
-        if(available > 0) {
+    public int read() {
+        if(available() > 0) {
             int value = readByte();
             byteIndex++;
             return value;
@@ -26,59 +27,92 @@ public class RStegPacketInputStream extends InputStream {
         }
     }
     
+    @Override
+    public int read(byte[] b, int off, int len) {
+        int count = Math.min(len, available());
+        if(count == 0) {
+            return (len == 0) ? 0 : -1;
+        }
+        int end = off + count;
+        while(off < end && byteIndex % 3 != 0) {
+            b[off++] = (byte)readByte();
+            byteIndex++;
+        }
+        
+        int groupEnd = off + (end - off) / 3 * 3;
+        int symbolIndex = byteIndex / 3 * 2;
+        byteIndex += groupEnd - off;
+        while(off < groupEnd) {
+            int s0 = symbols[symbolIndex];
+            int s1 = symbols[symbolIndex + 1];
+            b[off] = (byte)s0;
+            b[off + 1] = (byte)((s0 >>> 8) | (s1 << 4));
+            b[off + 2] = (byte)(s1 >>> 4);
+            off += 3;
+            symbolIndex += 2;
+        }
+        
+        while(off < end) {
+            b[off++] = (byte)readByte();
+            byteIndex++;
+        }
+        return count;
+    }
+    
+    /**
+     * Returns the number of bytes left in the packets that have been put.
+     */
+    @Override
+    public int available() {
+        return symbolCount / 2 * 3 - byteIndex;
+    }
+    
     public void putPacket(int[] packet) {
-        packets.add(packet);
+        putSymbols(packet, 0, packet.length);
     }
     
     public void putPackets(Collection<int[]> packets) {
-        this.packets.addAll(packets);
+        for(int[] packet : packets) {
+            putPacket(packet);
+        }
+    }
+    
+    /**
+     * Appends <code>length</code> symbols of <code>packetSymbols</code>,
+     * starting at <code>offset</code>. The symbols of byte groups that have
+     * already been read are discarded first.
+     */
+    public void putSymbols(int[] packetSymbols, int offset, int length) {
+        int readSymbolCount = byteIndex / 3 * 2;
+        System.arraycopy(symbols, readSymbolCount, symbols, 0, symbolCount - readSymbolCount);
+        symbolCount -= readSymbolCount;
+        byteIndex -= readSymbolCount / 2 * 3;
+        
+        if(symbolCount + length > symbols.length) {
+            symbols = Arrays.copyOf(symbols, Math.max(symbolCount + length, symbols.length * 2));
+        }
+        System.arraycopy(packetSymbols, offset, symbols, symbolCount, length);
+        symbolCount += length;
     }
     
+    @Override
     public void reset() {
-        packets.clear();
-        startNewPacket();
+        symbolCount = 0;
+        byteIndex = 0;
     }
     
     private int readByte() {
-        int[] currentPacket = packets.peek();
-        if(currentPacket == null) {
-            return -1;
-        }
+        int symbolIndex = byteIndex / 3 * 2;
         switch(byteIndex % 3) {
         case 0:
-            return currentPacket[byteIndex / 3 * 2] & 0xff;
+            return symbols[symbolIndex] & 0xff;
         case 1:
-            return ((currentPacket[byteIndex / 3 * 2] >>> 8) & 0x0f) | ((currentPacket[byteIndex / 3 * 2 + 1] << 4) & 0xf0);
+            return ((symbols[symbolIndex] >>> 8) & 0x0f) | ((symbols[symbolIndex + 1] << 4) & 0xf0);
         case 2:
-            return (currentPacket[byteIndex / 3 * 2 + 1] >>> 4) & 0xff;
+            return (symbols[symbolIndex + 1] >>> 4) & 0xff;
         default:
             assert false;
             return -1;
         }
     }
-    
-    private int requestAvailable(int byteCount) {
-        if(currentPacketAvailableBytes() > 0) {
-            return currentPacketAvailableBytes();
-        } else if(packets.peek() != null) {
-            startNewPacket();
-            return currentPacketAvailableBytes();
-        } else {
-            return 0;
-        }
-    }
-    
-    public int currentPacketAvailableBytes() {
-        int[] currentPacket = packets.peek();
-        if(currentPacket != null) {
-            return currentPacket.length / 2 * 3 - byteIndex;
-        } else {
-            return 0;
-        }
-    }
-    
-    private void startNewPacket() {
-        packets.remove();
-        byteIndex = 0;
-    }
 }
@@ -2,74 +2,171 @@ package com.bitwiseops.rsteg;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Writes a stream of bytes to consecutive packets. Groups of three bytes are
  * packed into groups of two 12-bit symbols.
+ * <p>
+ * The packets are stored back to back in a single symbol array, packet number
+ * <code>i</code> starting at <code>i * packetLength</code>. Since a packet
+ * always holds a whole number of byte groups, the packing does not depend on
+ * the packet boundaries.
  */
 public class RStegPacketOutputStream extends OutputStream {
     private final int packetLength;
     private final int packetLengthBytes;
-    private final List<int[]> packets = new ArrayList<int[]>();
+    private int[] symbols;
     private int byteIndex;
     
     public RStegPacketOutputStream(int packetLength) {
+        this(packetLength, 0);
+    }
+    
+    /**
+     * Constructs a stream with room for <code>expectedLength</code> bytes, so
+     * that the symbol array never needs to grow if that many bytes are
+     * written.
+     */
+    public RStegPacketOutputStream(int packetLength, int expectedLength) {
         if(packetLength % 2 != 0) {
             throw new IllegalArgumentException("packetLength must be even.");
         }
         this.packetLength = packetLength;
         this.packetLengthBytes = packetLength / 2 * 3;
-        reset();
+        this.symbols = new int[Math.max(1, MathUtils.ceilDivide(expectedLength, packetLengthBytes)) * packetLength];
     }
     
     @Override
     public void write(int b) throws IOException {
         requestCapacity(1);
-        storeByte(b);
+        storeByte(b & 0xff);
         byteIndex++;
     }
     
-    public List<int[]> getPackets() {
-        return packets;
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        requestCapacity(len);
+        int end = off + len;
+        while(off < end && byteIndex % 3 != 0) {
+            storeByte(b[off++] & 0xff);
+            byteIndex++;
+        }
+        
+        int groupEnd = off + (end - off) / 3 * 3;
+        int symbolIndex = byteIndex / 3 * 2;
+        byteIndex += groupEnd - off;
+        while(off < groupEnd) {
+            int b0 = b[off] & 0xff;
+            int b1 = b[off + 1] & 0xff;
+            int b2 = b[off + 2] & 0xff;
+            symbols[symbolIndex] = b0 | ((b1 & 0x0f) << 8);
+            symbols[symbolIndex + 1] = (b1 >>> 4) | (b2 << 4);
+            off += 3;
+            symbolIndex += 2;
+        }
+        
+        while(off < end) {
+            storeByte(b[off++] & 0xff);
+            byteIndex++;
+        }
     }
     
-    public void reset() {
-        packets.clear();
-        startNewPacket();
+    /**
+     * Returns the symbol array holding the packets. Symbols after the last
+     * byte written are zero.
+     */
+    public int[] getSymbols() {
+        return symbols;
     }
     
-    private void storeByte(int b) {
-        int[] currentPacket = packets.get(packets.size() - 1);
+    public int getPacketLength() {
+        return packetLength;
+    }
+    
+    /**
+     * Returns the number of packets that have been started.
+     */
+    public int getPacketCount() {
+        return MathUtils.ceilDivide(byteIndex, packetLengthBytes);
+    }
+    
+    /**
+     * Returns the number of packets that have been filled completely.
+     */
+    public int getFullPacketCount() {
+        return byteIndex / packetLengthBytes;
+    }
+    
+    /**
+     * Discards <code>packetCount</code> packets from number <code>startIndex
+     * </code> on, which must be full, so that they can be processed before
+     * the whole stream has been written. The packets after them move up.
+     */
+    public void removePackets(int startIndex, int packetCount) {
+        if(startIndex + packetCount > getFullPacketCount()) {
+            throw new IllegalArgumentException("Only full packets can be removed.");
+        }
+        int startSymbolIndex = startIndex * packetLength;
+        int removedSymbolCount = packetCount * packetLength;
+        int usedSymbolCount = getPacketCount() * packetLength;
+        System.arraycopy(symbols, startSymbolIndex + removedSymbolCount, symbols, startSymbolIndex, usedSymbolCount - startSymbolIndex - removedSymbolCount);
+        Arrays.fill(symbols, usedSymbolCount - removedSymbolCount, usedSymbolCount, 0);
+        byteIndex -= packetCount * packetLengthBytes;
+    }
+    
+    /**
+     * Overwrites byte number <code>byteIndex</code> of <code>packet</code>
+     * with <code>b</code>.
+     */
+    public static void putByte(int[] packet, int byteIndex, int b) {
+        int symbolIndex = byteIndex / 3 * 2;
         switch(byteIndex % 3) {
         case 0:
-            currentPacket[byteIndex / 3 * 2] |= b;
+            packet[symbolIndex] = (packet[symbolIndex] & 0xf00) | (b & 0xff);
             break;
         case 1:
-            currentPacket[byteIndex / 3 * 2] |= (b & 0x0f) << 8;
-            currentPacket[byteIndex / 3 * 2 + 1] |= (b & 0xf0) >>> 4;
+            packet[symbolIndex] = (packet[symbolIndex] & 0x0ff) | ((b & 0x0f) << 8);
+            packet[symbolIndex + 1] = (packet[symbolIndex + 1] & 0xff0) | ((b & 0xf0) >>> 4);
             break;
         case 2:
-            currentPacket[byteIndex / 3 * 2 + 1] |= b << 4;
+            packet[symbolIndex + 1] = (packet[symbolIndex + 1] & 0x00f) | ((b & 0xff) << 4);
             break;
         }
     }
     
-    private int requestCapacity(int byteCount) {
-        if(currentPacketCapacityBytes() > 0) {
-            return currentPacketCapacityBytes();
-        }
-        startNewPacket();
-        return currentPacketCapacityBytes();
+    public void reset() {
+        Arrays.fill(symbols, 0);
+        byteIndex = 0;
     }
     
-    public int currentPacketCapacityBytes() {
-        return packetLengthBytes - byteIndex;
+    /**
+     * Stores a byte at the current position. The first byte of a group
+     * overwrites its symbols, so they need not be cleared beforehand.
+     */
+    private void storeByte(int b) {
+        switch(byteIndex % 3) {
+        case 0:
+            symbols[byteIndex / 3 * 2] = b;
+            break;
+        case 1:
+            symbols[byteIndex / 3 * 2] |= (b & 0x0f) << 8;
+            symbols[byteIndex / 3 * 2 + 1] = (b & 0xf0) >>> 4;
+            break;
+        case 2:
+            symbols[byteIndex / 3 * 2 + 1] |= b << 4;
+            break;
+        }
     }
     
-    private void startNewPacket() {
-        packets.add(new int[packetLength]);
-        byteIndex = 0;
+    /**
+     * Grows the symbol array, if necessary, to hold <code>byteCount</code>
+     * more bytes.
+     */
+    private void requestCapacity(int byteCount) {
+        int neededLength = MathUtils.ceilDivide(byteIndex + byteCount, packetLengthBytes) * packetLength;
+        if(neededLength > symbols.length) {
+            symbols = Arrays.copyOf(symbols, Math.max(neededLength, symbols.length * 2));
+        }
     }
 }
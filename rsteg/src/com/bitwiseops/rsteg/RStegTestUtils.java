@@ -1,5 +1,7 @@
 package com.bitwiseops.rsteg;
 
+import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Random;
 
 public final class RStegTestUtils {
@@ -31,6 +33,98 @@ public final class RStegTestUtils {
         return croppedBitfield;
     }
     
+    /**
+     * Verify that a progressive decode of a damaged bitfield recovers the
+     * message whenever a full scan does. Each trial hides a random message of
+     * <code>messageLength</code> bytes in a <code>width</code> by <code>
+     * height</code> bitfield, overwrites <code>numErrors</code> random blocks
+     * of <code>blockSize</code> bits square and decodes the result both ways.
+     * Unlike scattered bit errors, most of which fail the parity check and
+     * become erasures, the blocks leave many wrong symbols that look valid.
+     */
+    public static boolean checkProgressiveDecoding(int width, int height, int messageLength, int numErrors, int blockSize, int trials, int maxErrors) {
+        Random random = new Random();
+        int errors = 0;
+        for(int trial = 0; trial < trials; trial++) {
+            byte[] message = new byte[messageLength];
+            random.nextBytes(message);
+            Bitfield2D bitfield = new Bitfield2D(width, height);
+            RStegCodec encoder = new RStegCodec();
+            encoder.setTargetBitfield(bitfield);
+            encoder.setErrorCorrectionLevel(RStegCodec.ErrorCorrectionLevel.MEDIUM);
+            try {
+                encoder.encode(message, 0, messageLength);
+            } catch(CodecException e) {
+                System.out.println(e);
+                return false;
+            }
+            corruptRandomBlocks(bitfield, numErrors, blockSize);
+            
+            boolean fullDecoded = decodesTo(bitfield, false, message);
+            boolean progressiveDecoded = decodesTo(bitfield, true, message);
+            if(fullDecoded && !progressiveDecoded) {
+                System.out.println(String.format("Progressive decoding error! Trial %d failed where a full scan succeeded.", trial));
+                errors++;
+                if(errors >= maxErrors) {
+                    return false;
+                }
+            }
+        }
+        return errors == 0;
+    }
+    
+    /**
+     * Verify that a message encoded sparsely into a bitfield of random bits
+     * decodes. Each trial hides a random message of <code>messageLength
+     * </code> bytes in a <code>width</code> by <code>height</code> bitfield
+     * filled from a secure generator, since the bits of consecutive values of
+     * <code>Random</code> are correlated enough to favour some alignments of
+     * tiles. A short message in a large bitfield leaves many patches of the
+     * cover that pass the checks of the index and metadata tiles.
+     */
+    public static boolean checkSparseDecoding(int width, int height, int messageLength, int trials, int maxErrors) {
+        SecureRandom random = new SecureRandom();
+        int errors = 0;
+        for(int trial = 0; trial < trials; trial++) {
+            byte[] message = new byte[messageLength];
+            random.nextBytes(message);
+            Bitfield2D bitfield = new Bitfield2D(width, height);
+            for(int i = 0; i < bitfield.data.length; i++) {
+                bitfield.data[i] = random.nextInt();
+            }
+            RStegCodec encoder = new RStegCodec();
+            encoder.setTargetBitfield(bitfield);
+            encoder.setErrorCorrectionLevel(RStegCodec.ErrorCorrectionLevel.MEDIUM);
+            encoder.setSparse(true);
+            try {
+                encoder.encode(message, 0, messageLength);
+            } catch(CodecException e) {
+                System.out.println(e);
+                return false;
+            }
+            
+            if(!decodesTo(bitfield, false, message)) {
+                System.out.println(String.format("Sparse decoding error! Trial %d failed.", trial));
+                errors++;
+                if(errors >= maxErrors) {
+                    return false;
+                }
+            }
+        }
+        return errors == 0;
+    }
+    
+    private static boolean decodesTo(Bitfield2D bitfield, boolean progressive, byte[] message) {
+        RStegCodec decoder = new RStegCodec();
+        decoder.setTargetBitfield(bitfield);
+        decoder.setProgressiveDecoding(progressive);
+        try {
+            return Arrays.equals(decoder.decode(), message);
+        } catch(CodecException e) {
+            return false;
+        }
+    }
+    
     /**
      * Verify that <code>field</code> is actually a finite field
      */
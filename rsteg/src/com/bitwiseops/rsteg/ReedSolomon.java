@@ -1,78 +1,344 @@
 package com.bitwiseops.rsteg;
 
+import java.util.Arrays;
+
 /**
  * Implements a Reed-Solomon code with general error correction capability.
+ * <p>
+ * Symbol <code>i</code> of a codeword is the value at the field element
+ * <code>i</code> of the polynomial of degree less than <code>messageSize
+ * </code> that takes the values of the message at the first <code>
+ * messageSize</code> elements, so the code is systematic.
+ * <p>
+ * Decoding works with the syndromes of the dual code, whose codewords are
+ * <code>(v_i * f(x_i))</code> for the column multipliers <code>v_i = 1 /
+ * prod_{j != i} (i - j)</code> and all polynomials <code>f</code> of degree
+ * less than <code>numCheckSymbols</code>. Taking <code>f(x) = (x - g)^l
+ * </code> with <code>g = codewordLength</code>, which is not a position,
+ * gives every position a nonzero locator <code>x_i = i - g</code>, so the
+ * usual algorithms apply: Berlekamp-Massey for the errata locator, started
+ * from the erasure locator, a search over the positions for its roots and
+ * Forney's formula for the errata values. Correcting a codeword takes
+ * <code>O(codewordLength * numCheckSymbols)</code> field operations, and so
+ * does encoding, which treats the check symbols as erasures.
+ * <p>
+ * Messages shorter than <code>messageSize</code> give shortened codewords:
+ * the message is padded with zeros that are left out of the codeword, which
+ * then holds the message followed by the check symbols. A shortened codeword
+ * corrects as many errors as a full one, and the decoder knows the left out
+ * symbols to be zero from the length of the codeword.
  */
 public class ReedSolomon {
+    public static final int ERASED_SYMBOL = -1;
+    
     private final Field field;
-    private int messageSize;
-    private int numCheckSymbols;
+    private final int messageSize;
+    private final int numCheckSymbols;
+    private final int codewordLength;
+    private final int[] columnMultipliers;
+    private final int[] locators;
+    private final int[] inverseLocators;
+    private final int[] checkLocator;// erasure locator of the check symbols
+    private final int[] checkErrataFactors;
     
     public ReedSolomon(Field field, int messageSize, int numCheckSymbols) {
-        if(numCheckSymbols % 2 != 0) {
-            throw new IllegalArgumentException("numCheckSymbols must be even.");
+        if(messageSize <= 0 || numCheckSymbols < 0) {
+            throw new IllegalArgumentException("messageSize must be positive and numCheckSymbols must not be negative.");
         }
         this.field = field;
         this.messageSize = messageSize;
         this.numCheckSymbols = numCheckSymbols;
+        this.codewordLength = messageSize + numCheckSymbols;
+        if(codewordLength >= field.getSize()) {
+            throw new IllegalArgumentException("Codewords must be shorter than the size of the field.");
+        }
+        
+        columnMultipliers = new int[codewordLength];
+        locators = new int[codewordLength];
+        inverseLocators = new int[codewordLength];
+        for(int i = 0; i < codewordLength; i++) {
+            int product = 1;
+            for(int j = 0; j < codewordLength; j++) {
+                if(j != i) {
+                    product = field.mul(product, field.sub(i, j));
+                }
+            }
+            columnMultipliers[i] = field.reciprocal(product);
+            locators[i] = field.sub(i, codewordLength);
+            inverseLocators[i] = field.reciprocal(locators[i]);
+        }
+        
+        int[] checkPositions = new int[numCheckSymbols];
+        for(int i = 0; i < numCheckSymbols; i++) {
+            checkPositions[i] = messageSize + i;
+        }
+        checkLocator = erasureLocator(checkPositions, numCheckSymbols);
+        checkErrataFactors = new int[numCheckSymbols];
+        for(int i = 0; i < numCheckSymbols; i++) {
+            checkErrataFactors[i] = errataFactor(checkLocator, messageSize + i);
+        }
+    }
+    
+    public int getMessageSize() {
+        return messageSize;
+    }
+    
+    public int getCodewordLength() {
+        return codewordLength;
     }
     
     /**
-     * Encodes a message using polynomial interpolation.
+     * Encodes a message of up to <code>messageSize</code> symbols by solving
+     * for the check symbols as erasures. The codeword has <code>length +
+     * numCheckSymbols</code> symbols, so it is shortened if the message is.
      */
     public int[] encode(int[] message, int offset, int length) {
-        if(length != messageSize) {
+        if(length <= 0 || length > messageSize) {
             throw new IllegalArgumentException("Message has incorrect size.");
         }
-        FieldPolynomial p = FieldPolynomial.lagrangeInterpolate(message, offset, length, field);
-        int[] codeword = new int[messageSize + numCheckSymbols];
-        System.arraycopy(message, offset, codeword, 0, messageSize);
-        for(int i = messageSize; i < messageSize + numCheckSymbols; i++) {
-            codeword[i] = p.evaluate(i);
+        int[] codeword = new int[length + numCheckSymbols];
+        System.arraycopy(message, offset, codeword, 0, length);
+        int[] syndromes = calcSyndromes(codeword, length);
+        int[] evaluator = multiplyTruncated(syndromes, checkLocator, numCheckSymbols);
+        for(int i = 0; i < numCheckSymbols; i++) {
+            int errataValue = field.mul(evaluate(evaluator, inverseLocators[messageSize + i]), checkErrataFactors[i]);
+            codeword[length + i] = field.negate(errataValue);
         }
         return codeword;
     }
     
     /**
-     * Decodes a message using the Berlekamp-Welch algorithm.
+     * Decodes a message, correcting errors and erasures. Symbols equal to
+     * <code>ERASED_SYMBOL</code> are known erasures, and each one costs half
+     * as much correction capacity as an error: with <code>r</code> symbols
+     * received, up to <code>(r - messageSize) / 2</code> of them may be
+     * wrong. Throws an <code>IllegalArgumentException</code> if the codeword
+     * cannot be corrected. A shortened codeword gives a message of <code>
+     * codeword.length - numCheckSymbols</code> symbols.
      */
     public int[] decode(int[] codeword) {
-        int codewordLength = messageSize + numCheckSymbols;
-        if(codeword.length != codewordLength) {
+        int[] message = decodeVerified(codeword);
+        if(message == null) {
+            throw new IllegalArgumentException("Too many errors.");
+        }
+        return message;
+    }
+    
+    /**
+     * Decodes a message like <code>decode</code>, but returns null if the
+     * result cannot be trusted, because more of the received symbols differ
+     * from the corrected codeword than could have been corrected, or if too
+     * many symbols are erased for any correction.
+     */
+    public int[] decodeVerified(int[] receivedCodeword) {
+        int messageLength = receivedCodeword.length - numCheckSymbols;
+        if(messageLength <= 0 || messageLength > messageSize) {
             throw new IllegalArgumentException("Codeword has incorrect size.");
         }
-        int[][] matrix = new int[codewordLength][];
-        int k = numCheckSymbols / 2;
-        int na = messageSize + k;
-        for(int row = 0; row < codewordLength; row++) {
-            int[] matrixRow = new int[codewordLength + 1];
-            for(int column = 0; column < na; column++) {
-                matrixRow[column] = field.pow(row, column);
+        // The symbols left out of a shortened codeword are zero
+        int[] codeword = new int[codewordLength];
+        System.arraycopy(receivedCodeword, 0, codeword, 0, messageLength);
+        System.arraycopy(receivedCodeword, messageLength, codeword, messageSize, numCheckSymbols);
+        
+        int[] erasurePositions = new int[codewordLength];
+        int erasureCount = 0;
+        for(int i = 0; i < codewordLength; i++) {
+            if(codeword[i] == ERASED_SYMBOL) {
+                erasurePositions[erasureCount++] = i;
             }
-            for(int column = na; column < codewordLength; column++) {
-                matrixRow[column] = field.negate(field.mul(field.pow(row, column - na), codeword[row]));
+        }
+        if(codewordLength - erasureCount < messageSize) {
+            return null;
+        }
+        
+        int[] message = Arrays.copyOf(codeword, messageSize);
+        int[] syndromes = calcSyndromes(codeword, codewordLength);
+        boolean syndromesZero = true;
+        for(int syndrome : syndromes) {
+            if(syndrome != 0) {
+                syndromesZero = false;
+                break;
             }
-            matrixRow[codewordLength] = field.mul(field.pow(row, k), codeword[row]);
-            matrix[row] = matrixRow;
         }
-        LinearAlgebraUtils.rowReduce(matrix, field);
+        if(syndromesZero && erasureCount == 0) {
+            return Arrays.copyOf(message, messageLength);
+        }
         
-        FieldPolynomial q = new FieldPolynomial(field);
-        FieldPolynomial e = new FieldPolynomial(field);
-        for(int ai = 0; ai < na; ai++) {
-            q.setCoefficient(ai, matrix[ai][codewordLength]);
+        int[] locator = findErrataLocator(syndromes, erasurePositions, erasureCount);
+        int locatorDegree = degree(locator);
+        if(2 * (locatorDegree - erasureCount) + erasureCount > numCheckSymbols) {
+            return null;
+        }
+        // Errata at left out positions would not give a shortened codeword
+        int[] errataPositions = new int[locatorDegree];
+        int errataCount = 0;
+        for(int i = 0; i < codewordLength && errataCount < locatorDegree; i = (i == messageLength - 1) ? messageSize : i + 1) {
+            if(evaluate(locator, inverseLocators[i]) == 0) {
+                errataPositions[errataCount++] = i;
+            }
         }
-        for(int bi = 0; bi < k; bi++) {
-            e.setCoefficient(bi, matrix[na + bi][codewordLength]);
+        if(errataCount != locatorDegree) {
+            return null;
         }
-        e.setCoefficient(k, 1);
-        FieldPolynomial p = q.div(e);
         
-        int[] message = new int[messageSize];
+        int[] evaluator = multiplyTruncated(syndromes, locator, numCheckSymbols);
+        for(int j = 0; j < errataCount; j++) {
+            int position = errataPositions[j];
+            if(position < messageSize) {
+                int received = (message[position] == ERASED_SYMBOL) ? 0 : message[position];
+                int errataValue = field.mul(evaluate(evaluator, inverseLocators[position]), errataFactor(locator, position));
+                message[position] = field.sub(received, errataValue);
+            }
+        }
         for(int i = 0; i < messageSize; i++) {
-            message[i] = p.evaluate(i);
+            if(message[i] == ERASED_SYMBOL) {
+                // An erasure that the locator missed cannot be filled in
+                return null;
+            }
         }
-        
-        return message;
+        return Arrays.copyOf(message, messageLength);
+    }
+    
+    /**
+     * Returns the syndromes <code>S_l = sum_i c_i * v_i * x_i^l</code> of the
+     * first <code>length</code> symbols of <code>codeword</code>, erasures
+     * counting as zero.
+     */
+    private int[] calcSyndromes(int[] codeword, int length) {
+        int[] syndromes = new int[numCheckSymbols];
+        for(int i = 0; i < length; i++) {
+            int symbol = codeword[i];
+            if(symbol == ERASED_SYMBOL || symbol == 0) {
+                continue;
+            }
+            int term = field.mul(symbol, columnMultipliers[i]);
+            int locator = locators[i];
+            for(int l = 0; l < numCheckSymbols; l++) {
+                syndromes[l] = field.add(syndromes[l], term);
+                term = field.mul(term, locator);
+            }
+        }
+        return syndromes;
+    }
+    
+    /**
+     * Returns <code>prod (1 - x_i * x)</code> over the first <code>count
+     * </code> of <code>positions</code>.
+     */
+    private int[] erasureLocator(int[] positions, int count) {
+        int[] locator = new int[count + 1];
+        locator[0] = 1;
+        for(int k = 0; k < count; k++) {
+            int locatorValue = locators[positions[k]];
+            for(int i = k + 1; i > 0; i--) {
+                locator[i] = field.sub(locator[i], field.mul(locator[i - 1], locatorValue));
+            }
+        }
+        return locator;
+    }
+    
+    /**
+     * Runs the Berlekamp-Massey algorithm on the syndromes, starting from the
+     * erasure locator, and returns the errata locator, whose roots are the
+     * inverse locators of the erased and wrong positions.
+     */
+    private int[] findErrataLocator(int[] syndromes, int[] erasurePositions, int erasureCount) {
+        int[] locator = Arrays.copyOf(erasureLocator(erasurePositions, erasureCount), numCheckSymbols + 1);
+        int[] previous = Arrays.copyOf(locator, numCheckSymbols + 1);
+        int locatorLength = erasureCount + 1;
+        int previousLength = erasureCount + 1;
+        for(int k = erasureCount; k < numCheckSymbols; k++) {
+            int discrepancy = syndromes[k];
+            for(int j = 1; j < locatorLength && j <= k; j++) {
+                discrepancy = field.add(discrepancy, field.mul(locator[j], syndromes[k - j]));
+            }
+            // previous *= x
+            System.arraycopy(previous, 0, previous, 1, previousLength);
+            previous[0] = 0;
+            previousLength++;
+            if(discrepancy != 0) {
+                int[] newLocator = Arrays.copyOf(locator, locator.length);
+                for(int i = 0; i < previousLength; i++) {
+                    newLocator[i] = field.sub(newLocator[i], field.mul(previous[i], discrepancy));
+                }
+                if(previousLength > locatorLength) {
+                    previous = scale(locator, locatorLength, field.reciprocal(discrepancy));
+                    int newLength = previousLength;
+                    previousLength = locatorLength;
+                    locatorLength = newLength;
+                }
+                locator = newLocator;
+            }
+        }
+        return Arrays.copyOf(locator, locatorLength);
+    }
+    
+    /**
+     * Returns the factor <code>-x / (v * lambda'(1/x))</code> at <code>
+     * position</code>, which turns the value of the errata evaluator <code>
+     * omega(1/x)</code> into the errata value there, by Forney's formula.
+     */
+    private int errataFactor(int[] locator, int position) {
+        int inverseLocator = inverseLocators[position];
+        int derivativeValue = 0;
+        int power = 1;// inverseLocator^(i - 1)
+        for(int i = 1; i < locator.length; i++) {
+            derivativeValue = field.add(derivativeValue, field.mul(multiplyByInteger(locator[i], i), power));
+            power = field.mul(power, inverseLocator);
+        }
+        return field.div(field.negate(locators[position]), field.mul(columnMultipliers[position], derivativeValue));
+    }
+    
+    private int[] multiplyTruncated(int[] a, int[] b, int length) {
+        int[] product = new int[length];
+        for(int i = 0; i < Math.min(a.length, length); i++) {
+            if(a[i] == 0) {
+                continue;
+            }
+            for(int j = 0; j < b.length && i + j < length; j++) {
+                product[i + j] = field.add(product[i + j], field.mul(a[i], b[j]));
+            }
+        }
+        return product;
+    }
+    
+    private int[] scale(int[] polynomial, int length, int factor) {
+        int[] scaled = new int[polynomial.length];
+        for(int i = 0; i < length; i++) {
+            scaled[i] = field.mul(polynomial[i], factor);
+        }
+        return scaled;
+    }
+    
+    private int evaluate(int[] polynomial, int x) {
+        int value = 0;
+        for(int i = polynomial.length - 1; i >= 0; i--) {
+            value = field.add(field.mul(value, x), polynomial[i]);
+        }
+        return value;
+    }
+    
+    /**
+     * Returns <code>x</code> added to itself <code>n</code> times.
+     */
+    private int multiplyByInteger(int x, int n) {
+        int result = 0;
+        while(n > 0) {
+            if((n & 1) != 0) {
+                result = field.add(result, x);
+            }
+            x = field.add(x, x);
+            n >>>= 1;
+        }
+        return result;
+    }
+    
+    private static int degree(int[] polynomial) {
+        for(int i = polynomial.length - 1; i > 0; i--) {
+            if(polynomial[i] != 0) {
+                return i;
+            }
+        }
+        return 0;
     }
 }
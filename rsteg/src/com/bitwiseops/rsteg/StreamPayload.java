@@ -0,0 +1,57 @@
+package com.bitwiseops.rsteg;
+
+import com.bitwiseops.rsteg.RStegCodec.ErrorCorrectionLevel;
+
+/**
+ * One of the messages that <code>RStegCodec.encodeStreams</code> multiplexes
+ * into a bitfield, with the ID a reader selects it by and the error
+ * correction level and codeword length it is encoded with.
+ */
+public class StreamPayload {
+    private final int streamId;
+    private final ErrorCorrectionLevel ecLevel;
+    private final int codewordLength;
+    private final byte[] data;
+    
+    /**
+     * Constructs a stream of <code>data</code> with codewords of the default
+     * length.
+     */
+    public StreamPayload(int streamId, ErrorCorrectionLevel ecLevel, byte[] data) {
+        this(streamId, ecLevel, RStegCodec.DEFAULT_CODEWORD_LENGTH, data);
+    }
+    
+    /**
+     * Constructs a stream of <code>data</code>. The stream ID must be from 0
+     * to <code>RStegCodec.MAX_STREAM_ID</code>, and the codeword length one
+     * that <code>RStegCodec.setCodewordLength</code> accepts.
+     */
+    public StreamPayload(int streamId, ErrorCorrectionLevel ecLevel, int codewordLength, byte[] data) {
+        if(streamId < 0 || streamId > RStegCodec.MAX_STREAM_ID) {
+            throw new IllegalArgumentException("streamId must be from 0 to " + RStegCodec.MAX_STREAM_ID + ".");
+        }
+        if(RStegCodec.codewordLengthCode(codewordLength) < 0) {
+            throw new IllegalArgumentException("codewordLength must be a multiple of 256 up to 3840, or 4095.");
+        }
+        this.streamId = streamId;
+        this.ecLevel = ecLevel;
+        this.codewordLength = codewordLength;
+        this.data = data;
+    }
+    
+    public int getStreamId() {
+        return streamId;
+    }
+    
+    public ErrorCorrectionLevel getErrorCorrectionLevel() {
+        return ecLevel;
+    }
+    
+    public int getCodewordLength() {
+        return codewordLength;
+    }
+    
+    public byte[] getData() {
+        return data;
+    }
+}
@@ -0,0 +1,24 @@
+package com.bitwiseops.rsteg;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Writes an image to a file one horizontal strip at a time, from top to
+ * bottom, without requiring the whole image to be held in memory.
+ */
+public interface StripImageWriter extends Closeable {
+    /**
+     * Appends the rows of <code>strip</code>, which must be a <code>
+     * TYPE_INT_ARGB</code> image as wide as the output image.
+     */
+    public void writeStrip(BufferedImage strip) throws IOException;
+    
+    /**
+     * Finishes the image and closes the underlying stream. All rows must have
+     * been written.
+     */
+    @Override
+    public void close() throws IOException;
+}
@@ -0,0 +1,43 @@
+package com.bitwiseops.rsteg;
+
+import java.util.Arrays;
+
+/**
+ * Thrown when some of the codewords of a message cannot be recovered, either
+ * because too few of their symbols were received or because the received
+ * symbols contain more errors than can be corrected.
+ */
+@SuppressWarnings("serial")
+public class UnrecoverableCodewordsException extends CodecException {
+    private static final int MAX_LISTED_INDICES = 16;
+    
+    private final int[] codewordIndices;
+    
+    public UnrecoverableCodewordsException(int[] codewordIndices) {
+        super(buildMessage(codewordIndices));
+        this.codewordIndices = codewordIndices.clone();
+    }
+    
+    /**
+     * Returns the indices of the codewords that cannot be recovered, in
+     * increasing order.
+     */
+    public int[] getCodewordIndices() {
+        return codewordIndices.clone();
+    }
+    
+    private static String buildMessage(int[] codewordIndices) {
+        StringBuilder message = new StringBuilder("Decoding failed: ");
+        message.append(codewordIndices.length);
+        message.append(codewordIndices.length == 1 ? " codeword is" : " codewords are");
+        message.append(" unrecoverable (");
+        int listedCount = Math.min(codewordIndices.length, MAX_LISTED_INDICES);
+        String indices = Arrays.toString(Arrays.copyOf(codewordIndices, listedCount));
+        message.append(indices.substring(1, indices.length() - 1));
+        if(listedCount < codewordIndices.length) {
+            message.append(", ...");
+        }
+        message.append(").");
+        return message.toString();
+    }
+}